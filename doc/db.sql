@@ -49,6 +49,18 @@ CREATE TABLE `sys_role_menu` (
   PRIMARY KEY (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='角色与菜单对应关系';
 
+-- 登录日志
+CREATE TABLE `sys_login_log` (
+  `id` bigint NOT NULL AUTO_INCREMENT,
+  `username` varchar(50) COMMENT '用户名',
+  `ip` varchar(64) COMMENT '登录IP',
+  `status` varchar(32) COMMENT '登录结果  success：成功   captcha_error：验证码不正确   unknown_account、incorrect_credentials、locked_account、auth_failed：认证失败',
+  `message` varchar(200) COMMENT '失败原因',
+  `create_time` datetime COMMENT '登录时间',
+  PRIMARY KEY (`id`),
+  INDEX (`username`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='登录日志';
+
 -- 初始数据 
 INSERT INTO `sys_user` (`user_id`, `username`, `password`, `email`, `mobile`, `status`, `create_time`) VALUES ('1', 'admin', '8c6976e5b5410415bde908bd4dee15dfb167a9c873fc4bb8a81f6f2ab448a918', 'root@renren.io', '13612345678', '1', '2016-11-11 11:11:11');
 INSERT INTO `sys_menu` (`menu_id`, `parent_id`, `name`, `url`, `perms`, `type`, `icon`, `order_num`) VALUES ('1', '0', '系统管理', NULL, NULL, '0', 'fa fa-cog', '0');
@@ -0,0 +1,129 @@
+package io.renren.loadtest;
+
+import io.renren.utils.SerializeUtils;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+/**
+ * session序列化的每次调用分配字节数
+ * <p>
+ * 用ThreadMXBean.getThreadAllocatedBytes统计当前线程在循环前后的分配量，对比原来每次新建ByteArrayOutputStream的写法
+ * 与SerializeUtils复用线程内缓冲区的写法，输出bytes/op和ns/op
+ * <p>
+ * 参数：iterations=20000 循环次数，rounds=3 轮数(取分配最少的一轮)
+ */
+public class AllocationBenchmark {
+
+    private static long sink;
+
+    /**
+     * 被测的一次调用，返回值计入sink避免被优化掉
+     */
+    private interface Op {
+        int run(int i);
+    }
+
+    public static void main(String[] args) {
+        int iterations = 20000;
+        int rounds = 3;
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            }
+            String key = arg.substring(0, index);
+            String value = arg.substring(index + 1);
+            switch (key) {
+                case "iterations": iterations = Integer.parseInt(value); break;
+                case "rounds": rounds = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("unknown option: " + key);
+            }
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            throw new IllegalStateException("thread allocated memory is not supported by this JVM");
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        SimpleSession session = newSession();
+
+        System.out.printf("%-18s %-5s %12s %10s%n", "case", "path", "bytes/op", "ns/op");
+        compare(threads, "serialize session", iterations, rounds,
+                i -> oldSerialize(session).length,
+                i -> SerializeUtils.serialize(session).length);
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void compare(com.sun.management.ThreadMXBean threads, String name, int iterations, int rounds,
+                                Op oldPath, Op newPath) {
+        String[] paths = {"old", "new"};
+        Op[] ops = {oldPath, newPath};
+        for (int p = 0; p < ops.length; p++) {
+            //预热，之后的轮次由JIT编译后的代码执行
+            measure(threads, ops[p], iterations);
+            long[] best = null;
+            for (int r = 0; r < rounds; r++) {
+                long[] result = measure(threads, ops[p], iterations);
+                if (best == null || result[0] < best[0]) {
+                    best = result;
+                }
+            }
+            System.out.printf("%-18s %-5s %12.1f %10.1f%n", name, paths[p],
+                    (double) best[0] / iterations, (double) best[1] / iterations);
+        }
+    }
+
+    /**
+     * @return 分配字节数、耗时/纳秒
+     */
+    private static long[] measure(com.sun.management.ThreadMXBean threads, Op op, int iterations) {
+        long thread = Thread.currentThread().getId();
+        long local = 0;
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            local += op.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+        sink += local;
+        return new long[]{bytes, elapsed};
+    }
+
+    /**
+     * 原来的SerializeUtils.serialize：每次新建128字节的ByteArrayOutputStream
+     */
+    private static byte[] oldSerialize(Object object) {
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(128);
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteStream);
+            objectOutputStream.writeObject(object);
+            objectOutputStream.flush();
+            return byteStream.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 与登录后保存到redis的session大小相近
+     */
+    private static SimpleSession newSession() {
+        SimpleSession session = new SimpleSession("127.0.0.1");
+        session.setId(UUID.randomUUID().toString());
+        session.setTimeout(1800000);
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, new SimplePrincipalCollection("admin", "userRealm"));
+        session.setAttribute(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
+        return session;
+    }
+}
@@ -0,0 +1,155 @@
+package io.renren.loadtest;
+
+import io.renren.shiro.AuthorizationAdvisor;
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.apache.shiro.authz.annotation.RequiresRoles;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.spring.security.interceptor.AuthorizationAttributeSourceAdvisor;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.framework.ProxyFactory;
+
+import java.util.Collections;
+
+/**
+ * 方法级权限检查的单次调用耗时
+ * <p>
+ * 同一个目标类分别用AuthorizationAttributeSourceAdvisor和AuthorizationAdvisor代理(与spring-shiro.xml一样使用CGLIB)，
+ * 在已登录的Subject下循环调用带@RequiresPermissions、@RequiresRoles和不带注解的方法，输出每次调用的纳秒数；
+ * 不带代理的直接调用作为基准。realm直接返回固定的授权信息，两者的差别只来自注解解析和拦截
+ * <p>
+ * 参数：duration=3 每项时长/秒，rounds=3 轮数(取最快一轮)
+ */
+public class AuthorizationBenchmark {
+
+    private static final String PERMISSION = "sys:user:list";
+
+    private static final String ROLE = "admin";
+
+    public static void main(String[] args) throws Exception {
+        int duration = 3;
+        int rounds = 3;
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            }
+            String key = arg.substring(0, index);
+            String value = arg.substring(index + 1);
+            switch (key) {
+                case "duration": duration = Integer.parseInt(value); break;
+                case "rounds": rounds = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("unknown option: " + key);
+            }
+        }
+
+        DefaultSecurityManager securityManager = new DefaultSecurityManager(new FixedRealm());
+        Subject subject = new Subject.Builder(securityManager).buildSubject();
+        subject.login(new UsernamePasswordToken(ROLE, ROLE));
+        ThreadContext.bind(securityManager);
+        ThreadContext.bind(subject);
+
+        AuthorizationAttributeSourceAdvisor shiroAdvisor = new AuthorizationAttributeSourceAdvisor();
+        shiroAdvisor.setSecurityManager(securityManager);
+        Service[] services = {new Service(), proxy(shiroAdvisor), proxy(new AuthorizationAdvisor())};
+        String[] names = {"direct", "AuthorizationAttributeSourceAdvisor", "AuthorizationAdvisor"};
+        String[] methods = {"permission", "role", "plain"};
+
+        System.out.printf("%-36s %-12s %10s%n", "advisor", "method", "ns/op");
+        for (int s = 0; s < services.length; s++) {
+            for (int m = 0; m < methods.length; m++) {
+                //预热
+                run(services[s], m, 1);
+                double best = Double.MAX_VALUE;
+                for (int r = 0; r < rounds; r++) {
+                    best = Math.min(best, run(services[s], m, duration));
+                }
+                System.out.printf("%-36s %-12s %10.1f%n", names[s], methods[m], best);
+            }
+        }
+        ThreadContext.remove();
+    }
+
+    private static Service proxy(Advisor advisor) {
+        ProxyFactory factory = new ProxyFactory(new Service());
+        factory.setProxyTargetClass(true);
+        factory.addAdvisor(advisor);
+        return (Service) factory.getProxy();
+    }
+
+    /**
+     * 单线程调用seconds秒
+     *
+     * @return 每次调用的纳秒数
+     */
+    private static double run(Service service, int method, int seconds) {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long count = 0;
+        long sink = 0;
+        long start = System.nanoTime();
+        while ((count & 0xfff) != 0 || System.nanoTime() < end) {
+            switch (method) {
+                case 0: sink += service.permission(count); break;
+                case 1: sink += service.role(count); break;
+                default: sink += service.plain(count); break;
+            }
+            count++;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.println();
+        }
+        return (double) elapsed / count;
+    }
+
+    public static class Service {
+
+        @RequiresPermissions(PERMISSION)
+        public long permission(long value) {
+            return value + 1;
+        }
+
+        @RequiresRoles(ROLE)
+        public long role(long value) {
+            return value + 2;
+        }
+
+        public long plain(long value) {
+            return value + 3;
+        }
+    }
+
+    /**
+     * 固定授权信息，不访问数据库，也不使用缓存
+     */
+    private static class FixedRealm extends AuthorizingRealm {
+
+        private final SimpleAuthorizationInfo info = new SimpleAuthorizationInfo(Collections.singleton(ROLE));
+
+        FixedRealm() {
+            info.addStringPermission(PERMISSION);
+            setAuthorizationCachingEnabled(false);
+        }
+
+        @Override
+        protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
+            return info;
+        }
+
+        @Override
+        protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) throws AuthenticationException {
+            UsernamePasswordToken upToken = (UsernamePasswordToken) token;
+            return new SimpleAuthenticationInfo(upToken.getUsername(), upToken.getPassword(), getName());
+        }
+    }
+}
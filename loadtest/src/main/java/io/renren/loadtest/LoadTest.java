@@ -0,0 +1,247 @@
+package io.renren.loadtest;
+
+import io.renren.utils.RedisUtils;
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 本地压力测试
+ * <p>
+ * 在同一进程中启动redis替身(backend=embedded时使用进程内存储)、H2内存数据库和嵌入式Tomcat(加载src/main/webapp)，
+ * 用users个虚拟用户循环执行 验证码 -> 登录 -> 打开页面 -> 退出，预热warmup秒后统计duration秒，
+ * 输出吞吐量、各步骤的耗时分位数、每个请求的redis命令数和每个用户的session大小
+ * <p>
+ * 参数以key=value形式传入，见Config
+ */
+public class LoadTest {
+
+    /**
+     * 压测参数
+     */
+    public static class Config {
+        //并发用户数
+        int users = 20;
+        //统计时长/秒
+        int duration = 30;
+        //预热时长/秒，不计入统计
+        int warmup = 10;
+        //每次操作之间的等待时间/毫秒
+        long thinkTime = 0;
+        //每次登录后按顺序打开pages的轮数
+        int navigations = 2;
+        String[] pages = {"sys/main.html", "sys/user.html", "sys/role.html", "sys/menu.html", "index.html"};
+        String username = "admin";
+        String password = "admin";
+        //与spring-shiro.xml中redisSessionDao的keyPrefix一致
+        String sessionKeyPrefix = "abc-";
+        String webapp = "../src/main/webapp";
+        int port = 18080;
+        //redis：redis替身，embedded：进程内存储(embedded-redis profile)
+        String backend = "redis";
+        //session、token，见shiro.properties的shiro.authMode
+        String authMode = "session";
+
+        static Config parse(String[] args) {
+            Config config = new Config();
+            for (String arg : args) {
+                int index = arg.indexOf('=');
+                if (index <= 0) {
+                    throw new IllegalArgumentException("expected key=value: " + arg);
+                }
+                String key = arg.substring(0, index);
+                String value = arg.substring(index + 1);
+                switch (key) {
+                    case "users": config.users = Integer.parseInt(value); break;
+                    case "duration": config.duration = Integer.parseInt(value); break;
+                    case "warmup": config.warmup = Integer.parseInt(value); break;
+                    case "thinkTime": config.thinkTime = Long.parseLong(value); break;
+                    case "navigations": config.navigations = Integer.parseInt(value); break;
+                    case "pages": config.pages = value.split(","); break;
+                    case "username": config.username = value; break;
+                    case "password": config.password = value; break;
+                    case "sessionKeyPrefix": config.sessionKeyPrefix = value; break;
+                    case "webapp": config.webapp = value; break;
+                    case "port": config.port = Integer.parseInt(value); break;
+                    case "backend": config.backend = value; break;
+                    case "authMode": config.authMode = value; break;
+                    default: throw new IllegalArgumentException("unknown option: " + key);
+                }
+            }
+            return config;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        RespServer redis = null;
+        if ("embedded".equals(config.backend)) {
+            System.setProperty("spring.profiles.active", "embedded-redis");
+        } else {
+            redis = new RespServer(0);
+            System.setProperty("redis.host", "127.0.0.1");
+            System.setProperty("redis.port", String.valueOf(redis.getPort()));
+            System.setProperty("redis.replicas", "");
+            System.setProperty("redis.sentinelMaster", "");
+        }
+        initDatabase();
+        System.setProperty("shiro.authMode", config.authMode);
+
+        Tomcat tomcat = startTomcat(config);
+        try {
+            awaitReady(config);
+            run(config, redis);
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+            if (redis != null) {
+                redis.close();
+            }
+        }
+    }
+
+    private static void initDatabase() throws Exception {
+        String url = "jdbc:h2:mem:renren;MODE=MySQL;DB_CLOSE_DELAY=-1";
+        System.setProperty("jdbc.url", url);
+        System.setProperty("jdbc.username", "sa");
+        System.setProperty("jdbc.password", "");
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute("create table sys_login_log (id bigint auto_increment primary key, username varchar(50), "
+                    + "ip varchar(64), status varchar(32), message varchar(200), create_time timestamp)");
+        }
+    }
+
+    private static Tomcat startTomcat(Config config) throws Exception {
+        File webapp = new File(config.webapp).getCanonicalFile();
+        if (!new File(webapp, "WEB-INF/web.xml").isFile()) {
+            throw new IllegalArgumentException("webapp not found: " + webapp);
+        }
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createTempDirectory("renren-loadtest").toString());
+        tomcat.setPort(config.port);
+        tomcat.getConnector().setProperty("maxThreads", String.valueOf(Math.max(200, config.users * 2)));
+        Context context = tomcat.addWebapp("", webapp.getPath());
+        context.setParentClassLoader(LoadTest.class.getClassLoader());
+        ((StandardJarScanner) context.getJarScanner()).setScanClassPath(false);
+        tomcat.start();
+        return tomcat;
+    }
+
+    private static void awaitReady(Config config) throws Exception {
+        URL url = new URL("http://127.0.0.1:" + config.port + "/health/ready");
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+        while (System.currentTimeMillis() < deadline) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            if (status == 200) {
+                return;
+            }
+            Thread.sleep(200);
+        }
+        throw new IllegalStateException("webapp not ready in 2 minutes");
+    }
+
+    private static void run(Config config, RespServer redis) throws Exception {
+        List<VirtualUser> users = new ArrayList<>();
+        List<Recorder> recorders = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        //webapp与压测共用类加载器，进程内存储时直接通过RedisUtils读取session
+        Function<String, byte[]> sessions = redis != null ? redis::peek
+                : key -> RedisUtils.get(key.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < config.users; i++) {
+            Recorder recorder = new Recorder();
+            VirtualUser user = new VirtualUser(config, sessions, recorder);
+            Thread thread = new Thread(user, "virtual-user-" + i);
+            users.add(user);
+            recorders.add(recorder);
+            threads.add(thread);
+            thread.start();
+        }
+
+        System.out.printf("users=%d warmup=%ds duration=%ds backend=%s pages=%s%n", config.users, config.warmup, config.duration,
+                config.backend, Arrays.toString(config.pages));
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.warmup));
+        for (Recorder recorder : recorders) {
+            recorder.setRecording(true);
+        }
+        long commands = redis != null ? redis.getCommands() : 0;
+        Map<String, Long> commandCounts = redis != null ? redis.getCommandCounts() : new TreeMap<>();
+        long start = System.nanoTime();
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.duration));
+
+        for (Recorder recorder : recorders) {
+            recorder.setRecording(false);
+        }
+        long elapsed = System.nanoTime() - start;
+        commands = redis != null ? redis.getCommands() - commands : 0;
+        Map<String, Long> commandDelta = redis != null ? redis.getCommandCounts() : new TreeMap<>();
+        for (Map.Entry<String, Long> entry : commandCounts.entrySet()) {
+            commandDelta.computeIfPresent(entry.getKey(), (k, v) -> v - entry.getValue());
+        }
+        for (VirtualUser user : users) {
+            user.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+
+        Recorder total = new Recorder();
+        for (Recorder recorder : recorders) {
+            recorder.mergeTo(total);
+        }
+        report(total, elapsed, commands, commandDelta);
+    }
+
+    private static void report(Recorder total, long elapsed, long commands, Map<String, Long> commandCounts) {
+        double seconds = elapsed / 1e9;
+        long requests = 0;
+        long errors = 0;
+        System.out.printf("%n%-10s %10s %8s %10s %10s %10s %10s %10s%n", "step", "count", "errors", "req/s", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)");
+        for (Map.Entry<String, Recorder.Samples> entry : total.getSteps().entrySet()) {
+            Recorder.Samples samples = entry.getValue();
+            requests += samples.size();
+            errors += samples.errors();
+            System.out.printf("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), samples.size(), samples.errors(),
+                    samples.size() / seconds, millis(samples.percentile(50)), millis(samples.percentile(90)),
+                    millis(samples.percentile(99)), millis(samples.max()));
+        }
+        System.out.printf("%ntotal requests=%d errors=%d throughput=%.1f req/s%n", requests, errors, requests / seconds);
+
+        if (!commandCounts.isEmpty()) {
+            System.out.printf("redis commands=%d per request=%.2f%n", commands, requests == 0 ? 0 : (double) commands / requests);
+        }
+        for (Map.Entry<String, Long> entry : commandCounts.entrySet()) {
+            if (entry.getValue() > 0) {
+                System.out.printf("  %-12s %10d %8.2f/req%n", entry.getKey(), entry.getValue(),
+                        requests == 0 ? 0 : (double) entry.getValue() / requests);
+            }
+        }
+
+        Recorder.Samples sessionBytes = total.getSessionBytes();
+        System.out.printf("session bytes per user: mean=%.0f p99=%d max=%d (%d logins)%n", sessionBytes.mean(),
+                sessionBytes.percentile(99), sessionBytes.max(), sessionBytes.size());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,143 @@
+package io.renren.loadtest;
+
+import io.renren.utils.CountingAsyncAppender;
+import org.apache.log4j.Appender;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.PatternLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 同步与异步appender的日志吞吐量
+ * <p>
+ * 与log4j.xml的info日志相同的布局和缓冲写入(BufferedIO，8192字节)写到临时文件，分别以同步FileAppender、
+ * 非阻塞和阻塞的CountingAsyncAppender(缓冲2048条)挂在root上，多个线程循环输出INFO日志；
+ * 输出调用方每秒完成的日志调用数、关闭appender(写完缓冲区)后实际写入文件的条数/秒和丢弃的条数
+ * <p>
+ * 参数：threads=1,4,16 线程数列表，duration=3 每项时长/秒
+ */
+public class LogAppenderBenchmark {
+
+    private static final String PATTERN = "[%p][%d{yyyy-MM-dd HH:mm:ss}] %c %m %n";
+
+    private static Logger logger;
+
+    public static void main(String[] args) throws Exception {
+        //不加载应用的log4j.xml，root上只挂被测的appender
+        System.setProperty("log4j.defaultInitOverride", "true");
+        logger = LoggerFactory.getLogger(LogAppenderBenchmark.class);
+        int[] threads = {1, 4, 16};
+        int duration = 3;
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            }
+            String key = arg.substring(0, index);
+            String value = arg.substring(index + 1);
+            switch (key) {
+                case "threads": threads = parseInts(value); break;
+                case "duration": duration = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("unknown option: " + key);
+            }
+        }
+
+        File dir = Files.createTempDirectory("log-appender-benchmark").toFile();
+        String[] modes = {"sync", "async", "async-blocking"};
+        System.out.printf("%-16s %8s %14s %14s %12s%n", "appender", "threads", "calls/s", "written/s", "discarded");
+        for (String mode : modes) {
+            for (int threadCount : threads) {
+                //预热
+                run(dir, mode, threadCount, 1);
+                long[] result = run(dir, mode, threadCount, duration);
+                System.out.printf("%-16s %8d %14.0f %14.0f %12d%n", mode, threadCount,
+                        result[0] * 1e9 / result[2], (result[0] - result[1]) * 1e9 / result[3], result[1]);
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * @return 日志调用数、丢弃数、调用耗时/纳秒、写完缓冲区的总耗时/纳秒
+     */
+    private static long[] run(File dir, String mode, int threadCount, int seconds) throws Exception {
+        FileAppender file = newFileAppender(new File(dir, mode + "-" + threadCount + ".log"));
+        Appender appender = file;
+        CountingAsyncAppender async = null;
+        if (mode.startsWith("async")) {
+            async = new CountingAsyncAppender();
+            async.setName(mode);
+            async.setBufferSize(2048);
+            async.setBlocking(mode.endsWith("blocking"));
+            async.setLocationInfo(false);
+            async.addAppender(file);
+            appender = async;
+        }
+        org.apache.log4j.Logger root = LogManager.getRootLogger();
+        root.removeAllAppenders();
+        root.setLevel(Level.INFO);
+        root.addAppender(appender);
+
+        LongAdder calls = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threadCount);
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                long count = 0;
+                while ((count & 0xff) != 0 || System.nanoTime() < end) {
+                    logger.info("user {} request {} finished in {}ms", id, count, count & 0x3f);
+                    count++;
+                }
+                calls.add(count);
+                done.countDown();
+            }, "log-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        //关闭时AsyncAppender等待后台线程写完缓冲区
+        root.removeAppender(appender);
+        appender.close();
+        long drained = System.nanoTime() - start;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long discarded = async != null ? (Long) async.getStats().get("discarded") : 0;
+        return new long[]{calls.sum(), discarded, elapsed, drained};
+    }
+
+    private static FileAppender newFileAppender(File file) throws IOException {
+        FileAppender appender = new FileAppender(new PatternLayout(PATTERN), file.getPath(), false, true, 8192);
+        appender.setName(file.getName());
+        return appender;
+    }
+
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+package io.renren.loadtest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 单个虚拟用户的耗时记录，不加锁，压测结束后合并
+ */
+public class Recorder {
+
+    private final Map<String, Samples> steps = new LinkedHashMap<>();
+
+    private final Samples sessionBytes = new Samples();
+
+    private volatile boolean recording;
+
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public void record(String step, long nanos, boolean success) {
+        if (!recording) {
+            return;
+        }
+        Samples samples = steps.computeIfAbsent(step, k -> new Samples());
+        samples.add(nanos);
+        if (!success) {
+            samples.errors++;
+        }
+    }
+
+    public void recordSessionBytes(long bytes) {
+        if (recording) {
+            sessionBytes.add(bytes);
+        }
+    }
+
+    public void mergeTo(Recorder total) {
+        for (Map.Entry<String, Samples> entry : steps.entrySet()) {
+            total.steps.computeIfAbsent(entry.getKey(), k -> new Samples()).addAll(entry.getValue());
+        }
+        total.sessionBytes.addAll(sessionBytes);
+    }
+
+    public Map<String, Samples> getSteps() {
+        return steps;
+    }
+
+    public Samples getSessionBytes() {
+        return sessionBytes;
+    }
+
+    /**
+     * 一组采样值
+     */
+    public static class Samples {
+        private long[] values = new long[1024];
+        private int size;
+        private long errors;
+        private boolean sorted;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+            sorted = false;
+        }
+
+        void addAll(Samples other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, size + other.size));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+            errors += other.errors;
+            sorted = false;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long errors() {
+            return errors;
+        }
+
+        /**
+         * @param percent 0~100
+         */
+        public long percentile(double percent) {
+            if (size == 0) {
+                return 0;
+            }
+            if (!sorted) {
+                Arrays.sort(values, 0, size);
+                sorted = true;
+            }
+            int index = (int) Math.ceil(percent / 100 * size) - 1;
+            return values[Math.max(0, Math.min(size - 1, index))];
+        }
+
+        public long max() {
+            return percentile(100);
+        }
+
+        public double mean() {
+            if (size == 0) {
+                return 0;
+            }
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return (double) sum / size;
+        }
+    }
+}
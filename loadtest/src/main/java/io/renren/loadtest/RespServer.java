@@ -0,0 +1,743 @@
+package io.renren.loadtest;
+
+import io.renren.utils.RemoteRedisBackend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * 进程内的redis替身，实现RESP协议和应用用到的命令(字符串、集合、哈希、列表、过期、MULTI/EXEC、delIfEquals的EVAL)
+ * <p>
+ * 只用于压测，所有数据在一把锁下读写，过期的key在访问时删除；记录每个命令的调用次数
+ */
+public class RespServer implements Closeable {
+
+    private static final Object OK = new Status("OK");
+    private static final Object QUEUED = new Status("QUEUED");
+    private static final Object PONG = new Status("PONG");
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "resp-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * key为ISO-8859-1解码的字符串，保证与byte[]一一对应
+     */
+    private final Map<String, Entry> data = new HashMap<>();
+
+    private final ConcurrentHashMap<String, LongAdder> commandCounts = new ConcurrentHashMap<>();
+
+    private final LongAdder commands = new LongAdder();
+
+    private volatile boolean running = true;
+
+    public RespServer(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return 命令总数
+     */
+    public long getCommands() {
+        return commands.sum();
+    }
+
+    /**
+     * @return 各命令的调用次数
+     */
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        commandCounts.forEach((name, count) -> counts.put(name, count.sum()));
+        return counts;
+    }
+
+    /**
+     * 直接读取字符串类型的value，不计入命令数
+     */
+    public synchronized byte[] peek(String key) {
+        Entry entry = live(key);
+        return entry != null && entry.value instanceof byte[] ? (byte[]) entry.value : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream(), 8192);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 8192);
+            List<List<byte[]>> transaction = null;
+            while (true) {
+                List<byte[]> args = readCommand(in);
+                if (args == null) {
+                    return;
+                }
+                String name = new String(args.get(0), StandardCharsets.US_ASCII).toUpperCase();
+                commands.increment();
+                commandCounts.computeIfAbsent(name, k -> new LongAdder()).increment();
+
+                Object reply;
+                if ("MULTI".equals(name)) {
+                    transaction = new ArrayList<>();
+                    reply = OK;
+                } else if ("EXEC".equals(name) || "DISCARD".equals(name)) {
+                    if (transaction == null) {
+                        reply = new ErrorReply("ERR " + name + " without MULTI");
+                    } else if ("EXEC".equals(name)) {
+                        List<Object> replies = new ArrayList<>();
+                        synchronized (this) {
+                            for (List<byte[]> queued : transaction) {
+                                replies.add(execute(queued));
+                            }
+                        }
+                        reply = replies;
+                    } else {
+                        reply = OK;
+                    }
+                    transaction = null;
+                } else if (transaction != null) {
+                    transaction.add(args);
+                    reply = QUEUED;
+                } else if (name.startsWith("B")) {
+                    reply = executeBlocking(name, args);
+                } else {
+                    synchronized (this) {
+                        reply = execute(args);
+                    }
+                }
+                write(out, reply);
+                //pipeline时等读完已到达的命令再flush
+                if (in.available() == 0) {
+                    out.flush();
+                }
+                if ("QUIT".equals(name)) {
+                    out.flush();
+                    return;
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            //客户端断开
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Object executeBlocking(String name, List<byte[]> args) {
+        if (!"BRPOPLPUSH".equals(name) || args.size() != 4) {
+            synchronized (this) {
+                return execute(args);
+            }
+        }
+        long timeout = Long.parseLong(str(args.get(3))) * 1000;
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        List<byte[]> command = new ArrayList<>();
+        command.add("RPOPLPUSH".getBytes(StandardCharsets.US_ASCII));
+        command.add(args.get(1));
+        command.add(args.get(2));
+        synchronized (this) {
+            while (true) {
+                Object reply = execute(command);
+                long wait = deadline - System.currentTimeMillis();
+                if (reply != null || wait <= 0) {
+                    return reply;
+                }
+                try {
+                    wait(Math.min(wait, 1000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 在锁内执行
+     */
+    private Object execute(List<byte[]> args) {
+        String name = new String(args.get(0), StandardCharsets.US_ASCII).toUpperCase();
+        try {
+            switch (name) {
+                case "PING":
+                    return args.size() > 1 ? args.get(1) : PONG;
+                case "ECHO":
+                    return args.get(1);
+                case "SELECT":
+                case "QUIT":
+                    return OK;
+                case "INFO":
+                    return bytes("# Server\r\nredis_version:3.0.0\r\nredis_mode:standalone\r\n");
+                case "DBSIZE":
+                    return (long) keys("*").size();
+                case "FLUSHDB":
+                case "FLUSHALL":
+                    data.clear();
+                    return OK;
+                case "KEYS": {
+                    List<Object> result = new ArrayList<>();
+                    for (String key : keys(str(args.get(1)))) {
+                        result.add(key(key));
+                    }
+                    return result;
+                }
+                case "TYPE": {
+                    Entry entry = live(key(args.get(1)));
+                    return new Status(entry == null ? "none" : entry.type());
+                }
+                case "EXISTS": {
+                    long count = 0;
+                    for (int i = 1; i < args.size(); i++) {
+                        if (live(key(args.get(i))) != null) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+                case "DEL": {
+                    long count = 0;
+                    for (int i = 1; i < args.size(); i++) {
+                        if (live(key(args.get(i))) != null) {
+                            data.remove(key(args.get(i)));
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+                case "EVAL": {
+                    //只支持RemoteRedisBackend.delIfEquals的脚本
+                    if (!RemoteRedisBackend.DEL_IF_EQUALS_SCRIPT.equals(str(args.get(1)))) {
+                        return new ErrorReply("ERR only the delIfEquals script is supported");
+                    }
+                    byte[] value = string(key(args.get(3)));
+                    if (value == null || !Arrays.equals(value, args.get(4))) {
+                        return 0L;
+                    }
+                    data.remove(key(args.get(3)));
+                    return 1L;
+                }
+                case "EXPIRE":
+                case "PEXPIRE": {
+                    Entry entry = live(key(args.get(1)));
+                    if (entry == null) {
+                        return 0L;
+                    }
+                    long ttl = Long.parseLong(str(args.get(2)));
+                    entry.expireAt = System.currentTimeMillis() + ("EXPIRE".equals(name) ? ttl * 1000 : ttl);
+                    return 1L;
+                }
+                case "PERSIST": {
+                    Entry entry = live(key(args.get(1)));
+                    if (entry == null || entry.expireAt == 0) {
+                        return 0L;
+                    }
+                    entry.expireAt = 0;
+                    return 1L;
+                }
+                case "TTL":
+                case "PTTL": {
+                    Entry entry = live(key(args.get(1)));
+                    if (entry == null) {
+                        return -2L;
+                    }
+                    if (entry.expireAt == 0) {
+                        return -1L;
+                    }
+                    long ttl = entry.expireAt - System.currentTimeMillis();
+                    return "TTL".equals(name) ? (ttl + 999) / 1000 : ttl;
+                }
+                case "GET":
+                    return string(key(args.get(1)));
+                case "STRLEN": {
+                    byte[] value = string(key(args.get(1)));
+                    return value == null ? 0L : (long) value.length;
+                }
+                case "MGET": {
+                    List<Object> result = new ArrayList<>();
+                    for (int i = 1; i < args.size(); i++) {
+                        result.add(string(key(args.get(i))));
+                    }
+                    return result;
+                }
+                case "SET":
+                    return set(args);
+                case "SETEX":
+                    put(key(args.get(1)), args.get(3), Long.parseLong(str(args.get(2))) * 1000);
+                    return OK;
+                case "PSETEX":
+                    put(key(args.get(1)), args.get(3), Long.parseLong(str(args.get(2))));
+                    return OK;
+                case "SETNX":
+                    if (live(key(args.get(1))) != null) {
+                        return 0L;
+                    }
+                    put(key(args.get(1)), args.get(2), 0);
+                    return 1L;
+                case "MSET":
+                    for (int i = 1; i + 1 < args.size(); i += 2) {
+                        put(key(args.get(i)), args.get(i + 1), 0);
+                    }
+                    return OK;
+                case "INCR":
+                    return incrBy(key(args.get(1)), 1);
+                case "DECR":
+                    return incrBy(key(args.get(1)), -1);
+                case "INCRBY":
+                    return incrBy(key(args.get(1)), Long.parseLong(str(args.get(2))));
+                case "DECRBY":
+                    return incrBy(key(args.get(1)), -Long.parseLong(str(args.get(2))));
+                case "INCRBYFLOAT": {
+                    String key = key(args.get(1));
+                    byte[] value = string(key);
+                    double result = (value == null ? 0 : Double.parseDouble(str(value))) + Double.parseDouble(str(args.get(2)));
+                    String text = result == Math.rint(result) && !Double.isInfinite(result)
+                            ? Long.toString((long) result) : Double.toString(result);
+                    keep(key, bytes(text));
+                    return bytes(text);
+                }
+                case "SADD": {
+                    Set<String> set = collection(key(args.get(1)), true, Set.class);
+                    long count = 0;
+                    for (int i = 2; i < args.size(); i++) {
+                        if (set.add(key(args.get(i)))) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+                case "SREM": {
+                    Set<String> set = collection(key(args.get(1)), false, Set.class);
+                    long count = 0;
+                    for (int i = 2; set != null && i < args.size(); i++) {
+                        if (set.remove(key(args.get(i)))) {
+                            count++;
+                        }
+                    }
+                    removeIfEmpty(key(args.get(1)), set);
+                    return count;
+                }
+                case "SMEMBERS": {
+                    Set<String> set = collection(key(args.get(1)), false, Set.class);
+                    List<Object> result = new ArrayList<>();
+                    if (set != null) {
+                        for (String member : set) {
+                            result.add(key(member));
+                        }
+                    }
+                    return result;
+                }
+                case "SCARD": {
+                    Set<String> set = collection(key(args.get(1)), false, Set.class);
+                    return set == null ? 0L : (long) set.size();
+                }
+                case "SISMEMBER": {
+                    Set<String> set = collection(key(args.get(1)), false, Set.class);
+                    return set != null && set.contains(key(args.get(2))) ? 1L : 0L;
+                }
+                case "HSET": {
+                    Map<String, byte[]> hash = collection(key(args.get(1)), true, Map.class);
+                    return hash.put(key(args.get(2)), args.get(3)) == null ? 1L : 0L;
+                }
+                case "HGET": {
+                    Map<String, byte[]> hash = collection(key(args.get(1)), false, Map.class);
+                    return hash == null ? null : hash.get(key(args.get(2)));
+                }
+                case "HDEL": {
+                    Map<String, byte[]> hash = collection(key(args.get(1)), false, Map.class);
+                    long count = 0;
+                    for (int i = 2; hash != null && i < args.size(); i++) {
+                        if (hash.remove(key(args.get(i))) != null) {
+                            count++;
+                        }
+                    }
+                    removeIfEmpty(key(args.get(1)), hash == null ? null : hash.keySet());
+                    return count;
+                }
+                case "HLEN": {
+                    Map<String, byte[]> hash = collection(key(args.get(1)), false, Map.class);
+                    return hash == null ? 0L : (long) hash.size();
+                }
+                case "HGETALL": {
+                    Map<String, byte[]> hash = collection(key(args.get(1)), false, Map.class);
+                    List<Object> result = new ArrayList<>();
+                    if (hash != null) {
+                        for (Map.Entry<String, byte[]> field : hash.entrySet()) {
+                            result.add(key(field.getKey()));
+                            result.add(field.getValue());
+                        }
+                    }
+                    return result;
+                }
+                case "LPUSH":
+                case "RPUSH": {
+                    LinkedList<byte[]> list = collection(key(args.get(1)), true, LinkedList.class);
+                    for (int i = 2; i < args.size(); i++) {
+                        if ("LPUSH".equals(name)) {
+                            list.addFirst(args.get(i));
+                        } else {
+                            list.addLast(args.get(i));
+                        }
+                    }
+                    notifyAll();
+                    return (long) list.size();
+                }
+                case "LPOP":
+                case "RPOP": {
+                    LinkedList<byte[]> list = collection(key(args.get(1)), false, LinkedList.class);
+                    if (list == null || list.isEmpty()) {
+                        return null;
+                    }
+                    byte[] value = "LPOP".equals(name) ? list.removeFirst() : list.removeLast();
+                    removeIfEmpty(key(args.get(1)), list);
+                    return value;
+                }
+                case "RPOPLPUSH": {
+                    LinkedList<byte[]> source = collection(key(args.get(1)), false, LinkedList.class);
+                    if (source == null || source.isEmpty()) {
+                        return null;
+                    }
+                    byte[] value = source.removeLast();
+                    removeIfEmpty(key(args.get(1)), source);
+                    LinkedList<byte[]> destination = collection(key(args.get(2)), true, LinkedList.class);
+                    destination.addFirst(value);
+                    return value;
+                }
+                case "LLEN": {
+                    LinkedList<byte[]> list = collection(key(args.get(1)), false, LinkedList.class);
+                    return list == null ? 0L : (long) list.size();
+                }
+                case "LRANGE": {
+                    LinkedList<byte[]> list = collection(key(args.get(1)), false, LinkedList.class);
+                    List<Object> result = new ArrayList<>();
+                    if (list != null) {
+                        int size = list.size();
+                        int start = index(Integer.parseInt(str(args.get(2))), size);
+                        int end = Math.min(index(Integer.parseInt(str(args.get(3))), size), size - 1);
+                        for (int i = start; i <= end; i++) {
+                            result.add(list.get(i));
+                        }
+                    }
+                    return result;
+                }
+                case "LREM": {
+                    LinkedList<byte[]> list = collection(key(args.get(1)), false, LinkedList.class);
+                    if (list == null) {
+                        return 0L;
+                    }
+                    long count = Long.parseLong(str(args.get(2)));
+                    String value = key(args.get(3));
+                    long removed = 0;
+                    Iterator<byte[]> it = count < 0 ? list.descendingIterator() : list.iterator();
+                    while (it.hasNext() && (count == 0 || removed < Math.abs(count))) {
+                        if (key(it.next()).equals(value)) {
+                            it.remove();
+                            removed++;
+                        }
+                    }
+                    removeIfEmpty(key(args.get(1)), list);
+                    return removed;
+                }
+                default:
+                    return new ErrorReply("ERR unknown command '" + name + "'");
+            }
+        } catch (ClassCastException e) {
+            return new ErrorReply("WRONGTYPE Operation against a key holding the wrong kind of value");
+        } catch (NumberFormatException e) {
+            return new ErrorReply("ERR value is not an integer or out of range");
+        } catch (IndexOutOfBoundsException e) {
+            return new ErrorReply("ERR wrong number of arguments for '" + name.toLowerCase() + "' command");
+        }
+    }
+
+    private Object set(List<byte[]> args) {
+        String key = key(args.get(1));
+        long ttl = 0;
+        boolean nx = false;
+        boolean xx = false;
+        for (int i = 3; i < args.size(); i++) {
+            String option = str(args.get(i)).toUpperCase();
+            if ("EX".equals(option)) {
+                ttl = Long.parseLong(str(args.get(++i))) * 1000;
+            } else if ("PX".equals(option)) {
+                ttl = Long.parseLong(str(args.get(++i)));
+            } else if ("NX".equals(option)) {
+                nx = true;
+            } else if ("XX".equals(option)) {
+                xx = true;
+            }
+        }
+        boolean exists = live(key) != null;
+        if ((nx && exists) || (xx && !exists)) {
+            return null;
+        }
+        put(key, args.get(2), ttl);
+        return OK;
+    }
+
+    private long incrBy(String key, long delta) {
+        byte[] value = string(key);
+        long result = (value == null ? 0 : Long.parseLong(str(value))) + delta;
+        keep(key, bytes(Long.toString(result)));
+        return result;
+    }
+
+    private void put(String key, byte[] value, long ttl) {
+        data.put(key, new Entry(value, ttl > 0 ? System.currentTimeMillis() + ttl : 0));
+    }
+
+    /**
+     * 修改value，保留过期时间
+     */
+    private void keep(String key, byte[] value) {
+        Entry entry = live(key);
+        data.put(key, new Entry(value, entry == null ? 0 : entry.expireAt));
+    }
+
+    private byte[] string(String key) {
+        Entry entry = live(key);
+        return entry == null ? null : (byte[]) entry.value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T collection(String key, boolean create, Class<?> type) {
+        Entry entry = live(key);
+        if (entry == null) {
+            if (!create) {
+                return null;
+            }
+            Object value = type == Set.class ? new LinkedHashSet<String>()
+                    : type == Map.class ? new LinkedHashMap<String, byte[]>() : new LinkedList<byte[]>();
+            entry = new Entry(value, 0);
+            data.put(key, entry);
+        }
+        if (!type.isInstance(entry.value)) {
+            throw new ClassCastException();
+        }
+        return (T) entry.value;
+    }
+
+    private void removeIfEmpty(String key, Collection<?> collection) {
+        if (collection != null && collection.isEmpty()) {
+            data.remove(key);
+        }
+    }
+
+    private Entry live(String key) {
+        Entry entry = data.get(key);
+        if (entry != null && entry.expireAt != 0 && entry.expireAt <= System.currentTimeMillis()) {
+            data.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private List<String> keys(String pattern) {
+        Pattern regex = glob(pattern);
+        List<String> keys = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> entry : data.entrySet()) {
+            long expireAt = entry.getValue().expireAt;
+            if ((expireAt == 0 || expireAt > now) && regex.matcher(entry.getKey()).matches()) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    private static Pattern glob(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '\\' && i + 1 < pattern.length()) {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static int index(int index, int size) {
+        return index < 0 ? Math.max(0, size + index) : index;
+    }
+
+    private static String key(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String str(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        if (first != '*') {
+            throw new IOException("inline commands are not supported");
+        }
+        int count = (int) readNumber(in);
+        List<byte[]> args = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("bulk string expected");
+            }
+            int length = (int) readNumber(in);
+            byte[] arg = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(arg, read, length - read);
+                if (n == -1) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            in.read();
+            in.read();
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private static long readNumber(InputStream in) throws IOException {
+        long value = 0;
+        boolean negative = false;
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c == '-') {
+                negative = true;
+            } else {
+                value = value * 10 + (c - '0');
+            }
+        }
+        in.read();
+        return negative ? -value : value;
+    }
+
+    private static void write(OutputStream out, Object reply) throws IOException {
+        if (reply == null) {
+            out.write(bytes("$-1\r\n"));
+        } else if (reply instanceof Status) {
+            out.write(bytes("+" + ((Status) reply).text + "\r\n"));
+        } else if (reply instanceof ErrorReply) {
+            out.write(bytes("-" + ((ErrorReply) reply).message + "\r\n"));
+        } else if (reply instanceof Long) {
+            out.write(bytes(":" + reply + "\r\n"));
+        } else if (reply instanceof byte[]) {
+            byte[] value = (byte[]) reply;
+            out.write(bytes("$" + value.length + "\r\n"));
+            out.write(value);
+            out.write('\r');
+            out.write('\n');
+        } else if (reply instanceof List) {
+            List<?> list = (List<?>) reply;
+            out.write(bytes("*" + list.size() + "\r\n"));
+            for (Object item : list) {
+                write(out, item);
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported reply " + reply.getClass());
+        }
+    }
+
+    private static class Entry {
+        private final Object value;
+        private long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+
+        String type() {
+            return value instanceof byte[] ? "string" : value instanceof Set ? "set" : value instanceof Map ? "hash" : "list";
+        }
+    }
+
+    private static class Status {
+        private final String text;
+
+        Status(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class ErrorReply {
+        private final String message;
+
+        ErrorReply(String message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.renren.loadtest;
+
+import io.renren.shiro.SecureSessionIdGenerator;
+import org.apache.shiro.session.mgt.eis.JavaUuidSessionIdGenerator;
+import org.apache.shiro.session.mgt.eis.SessionIdGenerator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * session id生成的竞争测试
+ * <p>
+ * 对每个线程数，分别用JavaUuidSessionIdGenerator和SecureSessionIdGenerator让所有线程同时循环生成id，
+ * 输出每秒生成数和相对单线程的倍数；线程数超过CPU核数后不会再增长
+ * <p>
+ * 参数：threads=1,2,4,8 线程数列表，duration=3 每轮时长/秒
+ */
+public class SessionIdBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] threads = {1, 2, 4, 8};
+        int duration = 3;
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            }
+            String key = arg.substring(0, index);
+            String value = arg.substring(index + 1);
+            switch (key) {
+                case "threads":
+                    String[] parts = value.split(",");
+                    threads = new int[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        threads[i] = Integer.parseInt(parts[i].trim());
+                    }
+                    break;
+                case "duration": duration = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("unknown option: " + key);
+            }
+        }
+
+        System.out.println("cpus " + Runtime.getRuntime().availableProcessors());
+        check(new SecureSessionIdGenerator());
+        SessionIdGenerator[] generators = {new JavaUuidSessionIdGenerator(), new SecureSessionIdGenerator()};
+        System.out.printf("%-28s %8s %14s %8s%n", "generator", "threads", "ids/s", "scale");
+        for (SessionIdGenerator generator : generators) {
+            //预热
+            run(generator, threads[threads.length - 1], 1);
+            double single = 0;
+            for (int n : threads) {
+                double rate = run(generator, n, duration);
+                if (single == 0) {
+                    single = rate / n;
+                }
+                System.out.printf("%-28s %8d %14.0f %8.2f%n", generator.getClass().getSimpleName(), n, rate, rate / single);
+            }
+        }
+    }
+
+    /**
+     * n个线程同时生成seconds秒
+     *
+     * @return 每秒生成数
+     */
+    private static double run(SessionIdGenerator generator, int n, int seconds) throws InterruptedException {
+        LongAdder count = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] window = new long[2];
+        List<Thread> workers = new ArrayList<>(n);
+        long deadline = TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < n; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long end = window[0] + deadline;
+                long local = 0;
+                while ((local & 0xff) != 0 || System.nanoTime() < end) {
+                    generator.generateId(null);
+                    local++;
+                }
+                count.add(local);
+            }, "session-id-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        window[0] = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        window[1] = System.nanoTime();
+        return count.sum() * 1e9 / (window[1] - window[0]);
+    }
+
+    /**
+     * 格式与唯一性
+     */
+    private static void check(SessionIdGenerator generator) {
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            String id = (String) generator.generateId(null);
+            if (id.length() != 22 || !id.matches("[A-Za-z0-9_-]+") || !ids.add(id)) {
+                throw new IllegalStateException("bad session id: " + id);
+            }
+        }
+    }
+}
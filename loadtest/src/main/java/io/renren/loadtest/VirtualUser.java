@@ -0,0 +1,223 @@
+package io.renren.loadtest;
+
+import com.google.code.kaptcha.Constants;
+import io.renren.utils.SerializeUtils;
+import io.renren.utils.ValueCompressor;
+import org.apache.shiro.session.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 虚拟用户，循环执行：获取验证码 -> 登录 -> 依次打开页面 -> 退出
+ * <p>
+ * 验证码从存储中的session读取，只保存sid和token cookie，不跟随重定向
+ */
+public class VirtualUser implements Runnable {
+
+    private static final ValueCompressor COMPRESSOR = new ValueCompressor();
+
+    private final LoadTest.Config config;
+
+    /**
+     * key -> 存储中的session
+     */
+    private final Function<String, byte[]> sessions;
+
+    private final Recorder recorder;
+
+    private final String baseUrl;
+
+    private String sid;
+
+    private String token;
+
+    private volatile boolean running = true;
+
+    public VirtualUser(LoadTest.Config config, Function<String, byte[]> sessions, Recorder recorder) {
+        this.config = config;
+        this.sessions = sessions;
+        this.recorder = recorder;
+        this.baseUrl = "http://127.0.0.1:" + config.port + "/";
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                flow();
+            } catch (IOException e) {
+                recorder.record("io_error", 0, false);
+            }
+        }
+    }
+
+    private void flow() throws IOException {
+        sid = null;
+        token = null;
+        boolean captcha = request("captcha", "GET", "captcha.jpg", null, Expect.OK);
+        String text = captchaText();
+        if (!captcha || text == null) {
+            return;
+        }
+        think();
+
+        String form = "username=" + URLEncoder.encode(config.username, "UTF-8")
+                + "&password=" + URLEncoder.encode(config.password, "UTF-8")
+                + "&captcha=" + URLEncoder.encode(text, "UTF-8");
+        boolean login = request("login", "POST", "sys/login", form, Expect.R_OK);
+        if (!login) {
+            return;
+        }
+        //token模式登录后不再有session
+        byte[] session = sid == null ? null : sessions.apply(config.sessionKeyPrefix + sid);
+        if (session != null) {
+            recorder.recordSessionBytes(session.length);
+        }
+
+        for (int i = 0; i < config.navigations && running; i++) {
+            for (String page : config.pages) {
+                think();
+                request("page", "GET", page, null, Expect.OK);
+            }
+        }
+        think();
+        request("logout", "GET", "logout", null, Expect.REDIRECT);
+    }
+
+    private String captchaText() {
+        if (sid == null) {
+            return null;
+        }
+        byte[] bytes = sessions.apply(config.sessionKeyPrefix + sid);
+        if (bytes == null) {
+            return null;
+        }
+        Object session = SerializeUtils.deserialize(COMPRESSOR.decompress(bytes));
+        return session instanceof Session ? (String) ((Session) session).getAttribute(Constants.KAPTCHA_SESSION_KEY) : null;
+    }
+
+    private void think() {
+        if (config.thinkTime > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(config.thinkTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+    }
+
+    private boolean request(String step, String method, String path, String form, Expect expect) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(30000);
+        if (sid != null || token != null) {
+            StringBuilder cookie = new StringBuilder();
+            if (sid != null) {
+                cookie.append("sid=").append(sid);
+            }
+            if (token != null) {
+                cookie.append(cookie.length() > 0 ? "; " : "").append("token=").append(token);
+            }
+            connection.setRequestProperty("Cookie", cookie.toString());
+        }
+        if (form != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(form.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int status = connection.getResponseCode();
+        boolean ok = expect.matches(status, read(connection, status));
+        updateCookies(connection.getHeaderFields().get("Set-Cookie"));
+        recorder.record(step, System.nanoTime() - start, ok);
+        return ok;
+    }
+
+    private void updateCookies(List<String> cookies) {
+        if (cookies == null) {
+            return;
+        }
+        for (String cookie : cookies) {
+            if (cookie.startsWith("sid=")) {
+                sid = value(cookie, 4);
+            } else if (cookie.startsWith("token=")) {
+                token = value(cookie, 6);
+            }
+        }
+    }
+
+    private static String value(String cookie, int start) {
+        int end = cookie.indexOf(';');
+        String value = cookie.substring(start, end < 0 ? cookie.length() : end);
+        return "deleteMe".equals(value) ? null : value;
+    }
+
+    /**
+     * 读完响应内容，连接才能复用
+     */
+    private static String read(HttpURLConnection connection, int status) throws IOException {
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream input = in) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        String contentType = connection.getContentType();
+        return contentType != null && contentType.startsWith("image/") ? "" : out.toString("UTF-8");
+    }
+
+    /**
+     * 成功的响应
+     */
+    private enum Expect {
+        /**
+         * 2xx、304，未登录时会被重定向到login.html，不算成功
+         */
+        OK,
+        /**
+         * 2xx、3xx
+         */
+        REDIRECT,
+        /**
+         * 2xx且R的code为0
+         */
+        R_OK;
+
+        boolean matches(int status, String body) {
+            switch (this) {
+                case REDIRECT:
+                    return status < 400;
+                case R_OK:
+                    return status < 300 && body.contains("\"code\":0");
+                default:
+                    return status < 300 || status == 304;
+            }
+        }
+    }
+}
@@ -4,23 +4,26 @@ package io.renren;
  * Created by jason_moo on 2018/6/19.
  */
 
+import io.renren.shiro.SessionMissCache;
+import io.renren.trace.RequestTrace;
 import io.renren.utils.RedisUtils;
 import io.renren.utils.SerializeUtils;
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.UnknownSessionException;
 import org.apache.shiro.session.mgt.eis.AbstractSessionDAO;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.DataAccessException;
-import org.springframework.data.redis.connection.RedisConnection;
-import org.springframework.data.redis.core.RedisCallback;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.clients.util.SafeEncoder;
 
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -30,19 +33,31 @@ public class RedisSessionDAO extends AbstractSessionDAO {
 
     private static Logger logger = LoggerFactory.getLogger(RedisSessionDAO.class);
 
-    @Autowired
-    StringRedisTemplate stringRedisTemplate;
+    /**
+     * 加入用户索引时使用的用户名。登出时shiro先移除principals再删除session，delete时用它从用户索引中移除
+     */
+    private static final String USERNAME_SESSION_KEY = RedisSessionDAO.class.getName() + "_USERNAME";
 
     /**
      * The Redis key prefix for the sessions
      */
     private String keyPrefix = "shiro_redis_session:";
 
+    /**
+     * 用户 -> sessionId集合 的key前缀
+     */
+    private String userKeyPrefix = "shiro_redis_user_sessions:";
+
     /**
      * redis 缓存过期时间/秒
      */
     private int expire = 60 * 60;
 
+    /**
+     * 最近不存在的sessionId，避免无效的sid每次请求都读redis
+     */
+    private SessionMissCache missCache = new SessionMissCache();
+
     /**
      * save session
      *
@@ -55,16 +70,48 @@ public class RedisSessionDAO extends AbstractSessionDAO {
             logger.error("session or session id is null");
             return;
         }
-        final byte[] key = getByteKey(session.getId());
-        final byte[] value = SerializeUtils.serialize(session);
-        session.setTimeout(expire * 1000);
-        stringRedisTemplate.execute(new RedisCallback<Void>() {
-            @Override
-            public Void doInRedis(RedisConnection connection) throws DataAccessException {
-                connection.setEx(key,expire,value);
-                return null;
+        //新创建的session(doCreate)或重新保存的session之后一定存在
+        missCache.invalidate(session.getId().toString());
+        RequestTrace.start(RequestTrace.Span.SESSION);
+        try {
+            final Object indexed = session.getAttribute(USERNAME_SESSION_KEY);
+            final Object principal = getUsername(session);
+            if (principal != null && !principal.equals(indexed)) {
+                //在序列化之前记录，与session一起保存
+                session.setAttribute(USERNAME_SESSION_KEY, principal);
             }
-        });
+            final byte[] key = getByteKey(session.getId());
+            final byte[] value = RedisUtils.compress(key, SerializeUtils.serialize(session));
+            if (value == null) {
+                //序列化失败，SerializeUtils已记录日志
+                return;
+            }
+            session.setTimeout(expire * 1000);
+            //principals已移除(登出过程中)时仍保留在原用户的索引中，直到delete
+            final Object username = principal != null ? principal : indexed;
+            if (username == null) {
+                RedisUtils.execute(backend -> {
+                    backend.setEx(key, expire, value);
+                    return null;
+                });
+                return;
+            }
+            //session与用户索引在一次往返中更新；不用MULTI/EXEC：jedis 2.8.0归还连接时会在EXEC之后再发送DISCARD，
+            //redis返回错误导致连接归还失败。索引中残留的sessionId由getSessionIds清理
+            final byte[] userKey = getUserKey(username);
+            //同一session换了登录用户时从原用户的索引中移除
+            final byte[] previousKey = indexed != null && !indexed.equals(username) ? getUserKey(indexed) : null;
+            RedisUtils.executePipelined(backend -> {
+                backend.setEx(key, expire, value);
+                backend.sAdd(userKey, getByteId(session.getId()));
+                backend.expire(userKey, expire);
+                if (previousKey != null) {
+                    backend.sRem(previousKey, getByteId(session.getId()));
+                }
+            });
+        } finally {
+            RequestTrace.stop(RequestTrace.Span.SESSION);
+        }
     }
 
     @Override
@@ -80,6 +127,93 @@ public class RedisSessionDAO extends AbstractSessionDAO {
             logger.error("session or session id is null");
             return;
         }
+        final byte[] key = getByteKey(session.getId());
+        Object principal = getUsername(session);
+        final Object username = principal != null ? principal : session.getAttribute(USERNAME_SESSION_KEY);
+        RequestTrace.start(RequestTrace.Span.SESSION);
+        try {
+            RedisUtils.executePipelined(backend -> {
+                backend.del(key);
+                if (username != null) {
+                    backend.sRem(getUserKey(username), getByteId(session.getId()));
+                }
+            });
+        } finally {
+            RequestTrace.stop(RequestTrace.Span.SESSION);
+        }
+    }
+
+    /**
+     * 获取用户的所有sessionId，已过期的sessionId会从用户索引中移除
+     *
+     * @param username 用户名
+     * @return sessionId集合
+     */
+    public Set<String> getSessionIds(final Object username) {
+        final byte[] userKey = getUserKey(username);
+        final Set<byte[]> members = RedisUtils.execute(backend -> backend.sMembers(userKey));
+        Set<String> sessionIds = new HashSet<>();
+        if (members == null || members.isEmpty()) {
+            return sessionIds;
+        }
+
+        final List<byte[]> ids = new ArrayList<>(members);
+        List<Object> exists = RedisUtils.executePipelined(backend -> {
+            for (byte[] id : ids) {
+                backend.exists(getByteKey(new String(id, StandardCharsets.UTF_8)));
+            }
+        });
+
+        final List<byte[]> stale = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (Boolean.TRUE.equals(exists.get(i))) {
+                sessionIds.add(new String(ids.get(i), StandardCharsets.UTF_8));
+            } else {
+                stale.add(ids.get(i));
+            }
+        }
+        if (!stale.isEmpty()) {
+            logger.debug("prune {} stale session ids of user {}", stale.size(), username);
+            RedisUtils.execute(backend -> backend.sRem(userKey, stale.toArray(new byte[stale.size()][])));
+        }
+        return sessionIds;
+    }
+
+    /**
+     * 用户当前在线的session数量
+     *
+     * @param username 用户名
+     * @return session数量
+     */
+    public int countSessions(Object username) {
+        return getSessionIds(username).size();
+    }
+
+    /**
+     * 踢出用户的所有session
+     *
+     * @param username 用户名
+     * @return 删除的session数量
+     */
+    public int kickOut(final Object username) {
+        final byte[] userKey = getUserKey(username);
+        Long count = RedisUtils.execute(backend -> {
+            Set<byte[]> ids = backend.sMembers(userKey);
+            if (ids == null || ids.isEmpty()) {
+                return 0L;
+            }
+            byte[][] keys = new byte[ids.size()][];
+            Iterator<byte[]> it = ids.iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                keys[i] = getByteKey(new String(it.next(), StandardCharsets.UTF_8));
+            }
+            //只统计session key，索引中可能有已过期的sessionId
+            Long removed = backend.del(keys);
+            backend.del(userKey);
+            return removed;
+        });
+        logger.debug("kick out user {}, {} sessions removed", username, count);
+        return count == null ? 0 : count.intValue();
     }
 
     @Override
@@ -89,7 +223,7 @@ public class RedisSessionDAO extends AbstractSessionDAO {
         Set<byte[]> keys = RedisUtils.keys(this.keyPrefix + "*");
         if (keys != null && keys.size() > 0) {
             for (byte[] key : keys) {
-                Session s = (Session) SerializeUtils.deserialize(RedisUtils.get(key));
+                Session s = (Session) SerializeUtils.deserialize(RedisUtils.getFromMaster(key));
                 sessions.add(s);
             }
         }
@@ -112,11 +246,25 @@ public class RedisSessionDAO extends AbstractSessionDAO {
             logger.error("session id is null");
             return null;
         }
+        final String id = sessionId.toString();
+        if (missCache.isMissing(id)) {
+            return null;
+        }
+        RequestTrace.start(RequestTrace.Span.SESSION);
         try {
-            return (Session) SerializeUtils.deserialize(RedisUtils.get(this.getByteKey(sessionId)));
+            final byte[] key = this.getByteKey(sessionId);
+            //session只读主库：登录后的下一个请求在从库上可能读到登录前的session
+            byte[] value = RedisUtils.getFromMaster(key);
+            if (value == null) {
+                missCache.recordMiss(id);
+                return null;
+            }
+            return (Session) SerializeUtils.deserialize(value);
         } catch (Exception e) {
             logger.error("Failed to deserialize", e);
             return null;
+        } finally {
+            RequestTrace.stop(RequestTrace.Span.SESSION);
         }
     }
 
@@ -127,10 +275,29 @@ public class RedisSessionDAO extends AbstractSessionDAO {
      * @return
      */
     private byte[] getByteKey(Serializable sessionId) {
-        String preKey = this.keyPrefix + sessionId;
+        return SafeEncoder.encode(this.keyPrefix + sessionId);
+    }
+
+    private byte[] getByteId(Serializable sessionId) {
+        return SafeEncoder.encode(sessionId.toString());
+    }
+
+    private byte[] getUserKey(Object username) {
+        String preKey = this.userKeyPrefix + username;
         return preKey.getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * 已登录session的用户名，未登录时返回null
+     */
+    private Object getUsername(Session session) {
+        Object principals = session.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+        if (principals instanceof PrincipalCollection) {
+            return ((PrincipalCollection) principals).getPrimaryPrincipal();
+        }
+        return null;
+    }
+
     /**
      * Returns the Redis session keys
      * prefix.
@@ -151,6 +318,14 @@ public class RedisSessionDAO extends AbstractSessionDAO {
         this.keyPrefix = keyPrefix;
     }
 
+    public String getUserKeyPrefix() {
+        return userKeyPrefix;
+    }
+
+    public void setUserKeyPrefix(String userKeyPrefix) {
+        this.userKeyPrefix = userKeyPrefix;
+    }
+
     public int getExpire() {
         return expire;
     }
@@ -158,4 +333,12 @@ public class RedisSessionDAO extends AbstractSessionDAO {
     public void setExpire(int expire) {
         this.expire = expire;
     }
+
+    public SessionMissCache getMissCache() {
+        return missCache;
+    }
+
+    public void setMissCache(SessionMissCache missCache) {
+        this.missCache = missCache;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package io.renren.audit;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * 登录日志，字符串字段按sys_login_log的列长度截断
+ */
+public class LoginAuditLog implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 登录成功
+	 */
+	public static final String SUCCESS = "success";
+	/**
+	 * 验证码不正确
+	 */
+	public static final String CAPTCHA_ERROR = "captcha_error";
+	/**
+	 * 账号不存在
+	 */
+	public static final String UNKNOWN_ACCOUNT = "unknown_account";
+	/**
+	 * 密码不正确
+	 */
+	public static final String INCORRECT_CREDENTIALS = "incorrect_credentials";
+	/**
+	 * 账号已锁定
+	 */
+	public static final String LOCKED_ACCOUNT = "locked_account";
+	/**
+	 * 其他认证失败
+	 */
+	public static final String AUTH_FAILED = "auth_failed";
+
+	private static final int USERNAME_LENGTH = 50;
+	private static final int IP_LENGTH = 64;
+	private static final int STATUS_LENGTH = 32;
+	private static final int MESSAGE_LENGTH = 200;
+
+	//用户名
+	private String username;
+	//登录IP
+	private String ip;
+	//登录结果
+	private String status;
+	//失败原因
+	private String message;
+	//登录时间
+	private Date createTime;
+
+	public LoginAuditLog(String username, String ip, String status, String message) {
+		setUsername(username);
+		setIp(ip);
+		setStatus(status);
+		setMessage(message);
+		this.createTime = new Date();
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = StringUtils.left(username, USERNAME_LENGTH);
+	}
+
+	public String getIp() {
+		return ip;
+	}
+
+	public void setIp(String ip) {
+		this.ip = StringUtils.left(ip, IP_LENGTH);
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = StringUtils.left(status, STATUS_LENGTH);
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = StringUtils.left(message, MESSAGE_LENGTH);
+	}
+
+	public Date getCreateTime() {
+		return createTime;
+	}
+
+	public void setCreateTime(Date createTime) {
+		this.createTime = createTime;
+	}
+}
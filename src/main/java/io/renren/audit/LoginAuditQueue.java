@@ -0,0 +1,264 @@
+package io.renren.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 登录日志异步批量写入
+ * <p>
+ * 登录请求只把日志放入有界队列，不会阻塞；后台线程在攒够batchSize条或等待flushInterval后批量insert；
+ * 批量insert在一个事务中执行，失败时回滚后逐条重试，只丢弃写入失败的日志；
+ * 队列满时按overflowPolicy丢弃；应用关闭时写完队列中剩余的日志(最多等待shutdownTimeout)
+ * <p>
+ * 没有配置DataSource时(如embedded-redis)只把登录日志输出到日志文件，不写数据库
+ */
+public class LoginAuditQueue implements InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(LoginAuditQueue.class);
+
+	private static final String INSERT_SQL = "insert into sys_login_log (username, ip, status, message, create_time) values (?, ?, ?, ?, ?)";
+
+	/**
+	 * 队列满时的处理方式
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * 丢弃新日志
+		 */
+		DISCARD_NEWEST,
+		/**
+		 * 丢弃最早的日志
+		 */
+		DISCARD_OLDEST
+	}
+
+	private JdbcTemplate jdbcTemplate;
+
+	/**
+	 * 批量insert的事务，失败时整批回滚，逐条重试不会重复写入
+	 */
+	private TransactionTemplate transactionTemplate;
+
+	//队列容量
+	private int capacity = 10000;
+	//每批最多写入条数
+	private int batchSize = 200;
+	//最长等待时间/毫秒，超过后不足batchSize也写入
+	private long flushInterval = 1000;
+	//应用关闭时最长等待时间/毫秒
+	private long shutdownTimeout = 5000;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DISCARD_NEWEST;
+
+	private BlockingQueue<LoginAuditLog> queue;
+	private Thread writer;
+	private volatile boolean running;
+
+	private final LongAdder offered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+
+	@Override
+	public void afterPropertiesSet() {
+		queue = new ArrayBlockingQueue<>(capacity);
+		running = true;
+		writer = new Thread(this::run, "login-audit-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * 添加登录日志，不阻塞
+	 *
+	 * @return 是否成功放入队列
+	 */
+	public boolean offer(LoginAuditLog log) {
+		offered.increment();
+		if (queue.offer(log)) {
+			return true;
+		}
+		dropped.increment();
+		if (overflowPolicy == OverflowPolicy.DISCARD_OLDEST) {
+			queue.poll();
+			return queue.offer(log);
+		}
+		return false;
+	}
+
+	private void run() {
+		List<LoginAuditLog> batch = new ArrayList<>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				LoginAuditLog first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.currentTimeMillis() + flushInterval;
+				while (batch.size() < batchSize && running) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long wait = deadline - System.currentTimeMillis();
+					if (batch.size() >= batchSize || wait <= 0) {
+						break;
+					}
+					LoginAuditLog next = queue.poll(wait, TimeUnit.MILLISECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				queue.drainTo(batch, batchSize - batch.size());
+			} catch (InterruptedException e) {
+				//关闭时被中断，继续写完剩余日志
+				running = false;
+			}
+			if (!batch.isEmpty()) {
+				write(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(final List<LoginAuditLog> batch) {
+		if (jdbcTemplate == null) {
+			for (LoginAuditLog log : batch) {
+				logger.info("login {} ip={} status={} message={}", log.getUsername(), log.getIp(), log.getStatus(), log.getMessage());
+			}
+			written.add(batch.size());
+			return;
+		}
+		try {
+			transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+				@Override
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					LoginAuditQueue.setValues(ps, batch.get(i));
+				}
+
+				@Override
+				public int getBatchSize() {
+					return batch.size();
+				}
+			}));
+			written.add(batch.size());
+			batches.increment();
+		} catch (Exception e) {
+			logger.warn("batch write {} login logs failed, retry one by one", batch.size(), e);
+			writeEach(batch);
+		}
+	}
+
+	/**
+	 * 逐条写入，一条失败不影响其他日志
+	 */
+	private void writeEach(List<LoginAuditLog> logs) {
+		for (LoginAuditLog log : logs) {
+			try {
+				jdbcTemplate.update(INSERT_SQL, ps -> setValues(ps, log));
+				written.increment();
+			} catch (Exception e) {
+				failed.increment();
+				logger.error("write login log of {} failed", log.getUsername(), e);
+			}
+		}
+	}
+
+	private static void setValues(PreparedStatement ps, LoginAuditLog log) throws SQLException {
+		ps.setString(1, log.getUsername());
+		ps.setString(2, log.getIp());
+		ps.setString(3, log.getStatus());
+		ps.setString(4, log.getMessage());
+		ps.setTimestamp(5, new Timestamp(log.getCreateTime().getTime()));
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		running = false;
+		writer.join(shutdownTimeout);
+		if (writer.isAlive()) {
+			writer.interrupt();
+			logger.warn("login audit writer did not finish in {}ms, {} logs left", shutdownTimeout, queue.size());
+		}
+	}
+
+	/**
+	 * 写入统计
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<>();
+		stats.put("queued", queue.size());
+		stats.put("offered", offered.sum());
+		stats.put("dropped", dropped.sum());
+		stats.put("written", written.sum());
+		stats.put("failed", failed.sum());
+		stats.put("batches", batches.sum());
+		stats.put("persistent", jdbcTemplate != null);
+		return stats;
+	}
+
+	@Autowired(required = false)
+	public void setDataSource(DataSource dataSource) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+}
@@ -0,0 +1,430 @@
+package io.renren.cache;
+
+import io.renren.utils.RedisUtils;
+import io.renren.utils.SerializeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于RedisUtils的Spring Cache实现
+ * <p>
+ * 本地缓存(有界、短时间) + redis两级缓存；key未命中时通过redis锁保证集群内只有一个调用方查询数据库，
+ * 其他调用方等待结果；临近过期时按概率提前刷新(XFetch)，避免大量key同时过期造成的击穿。
+ * 获得加载权的线程记录在PENDING中，@Cacheable方法抛出异常或结果未put时由RedisCacheInterceptor释放锁；
+ * 每个缓存的key记录在一个redis集合中，clear时只删除集合中的key
+ */
+public class RedisCache extends AbstractValueAdaptingCache {
+
+    private static Logger logger = LoggerFactory.getLogger(RedisCache.class);
+
+    /**
+     * 当前线程获得加载权、还没有put的key
+     */
+    private static final ThreadLocal<List<Pending>> PENDING = new ThreadLocal<List<Pending>>() {
+        @Override
+        protected List<Pending> initialValue() {
+            return new ArrayList<>();
+        }
+    };
+
+    /**
+     * clear时每批删除的key数量
+     */
+    private static final int CLEAR_BATCH_SIZE = 500;
+
+    private final String name;
+
+    private final String keyPrefix;
+
+    /**
+     * 该缓存所有key的集合
+     */
+    private final byte[] keysKey;
+
+    /**
+     * redis 缓存过期时间/秒
+     */
+    private final long expire;
+
+    /**
+     * 本地缓存最大数量，小于等于0时不使用本地缓存
+     */
+    private final int localMaxSize;
+
+    /**
+     * 本地缓存过期时间/毫秒，其他节点修改数据后，本节点最多在此时间内读到旧值
+     */
+    private final long localExpire;
+
+    /**
+     * 加载锁的超时时间/毫秒，超时后等待方自行加载
+     */
+    private final long lockTimeout;
+
+    /**
+     * 提前刷新系数，越大越早刷新，0时不提前刷新
+     */
+    private final double beta;
+
+    private final ConcurrentMap<Object, LocalEntry> local = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点正在加载的key
+     */
+    private final ConcurrentMap<Object, Loading> loading = new ConcurrentHashMap<>();
+
+    public RedisCache(String name, String keyPrefix, long expire, int localMaxSize, long localExpire,
+                      long lockTimeout, double beta, boolean allowNullValues) {
+        super(allowNullValues);
+        this.name = name;
+        this.keyPrefix = keyPrefix + name + ":";
+        this.keysKey = SafeEncoder.encode(keyPrefix + name);
+        this.expire = expire;
+        this.localMaxSize = localMaxSize;
+        this.localExpire = localExpire;
+        this.lockTimeout = lockTimeout;
+        this.beta = beta;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return this;
+    }
+
+    /**
+     * 返回null时调用方会执行@Cacheable方法并put结果
+     */
+    @Override
+    protected Object lookup(Object key) {
+        long now = System.currentTimeMillis();
+        LocalEntry localEntry = local.get(key);
+        if (localEntry != null && localEntry.expireAt > now) {
+            return localEntry.value;
+        }
+
+        CacheEntry entry = read(key, false);
+        if (entry != null) {
+            if (shouldRefreshEarly(entry, now) && startLoading(key, now)) {
+                logger.debug("refresh early cache={},key={}", name, key);
+                return null;
+            }
+            putLocal(key, entry, now);
+            return entry.value;
+        }
+
+        Loading current = new Loading(now + lockTimeout);
+        Loading existing = loading.putIfAbsent(key, current);
+        if (existing != null && existing.deadline <= now) {
+            //上次加载异常未put，放弃旧的加载状态
+            loading.remove(key, existing);
+            existing.latch.countDown();
+            existing = loading.putIfAbsent(key, current);
+        }
+        if (existing == null) {
+            if (tryLock(key, current)) {
+                current.start = now;
+                PENDING.get().add(new Pending(this, key, current));
+                return null;
+            }
+            //其他节点正在加载
+            entry = awaitRemote(key);
+            loading.remove(key, current);
+            current.latch.countDown();
+        } else {
+            //本节点其他线程正在加载
+            try {
+                existing.latch.await(lockTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            entry = read(key, true);
+        }
+
+        if (entry == null) {
+            logger.debug("wait for loading timeout, cache={},key={}", name, key);
+            return null;
+        }
+        putLocal(key, entry, System.currentTimeMillis());
+        return entry.value;
+    }
+
+    /**
+     * 只释放当前线程自己获得的加载权，其他线程的put(如@CachePut)不影响正在进行的加载
+     */
+    @Override
+    public void put(Object key, Object value) {
+        long now = System.currentTimeMillis();
+        Loading current = removePending(key);
+        long delta = current != null && current.start > 0 ? now - current.start : 0;
+
+        CacheEntry entry = new CacheEntry(toStoreValue(value), now + expire * 1000, delta);
+        byte[] byteKey = getByteKey(key);
+        byte[] bytes = RedisUtils.compress(byteKey, SerializeUtils.serialize(entry));
+        RedisUtils.executePipelined(backend -> {
+            backend.setEx(byteKey, (int) expire, bytes);
+            backend.sAdd(keysKey, byteKey);
+            backend.expire(keysKey, (int) expire);
+        });
+        putLocal(key, entry, now);
+
+        if (current != null) {
+            release(key, current);
+        }
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        Object existing = lookup(key);
+        if (existing != null) {
+            return new SimpleValueWrapper(fromStoreValue(existing));
+        }
+        put(key, value);
+        return null;
+    }
+
+    @Override
+    public void evict(Object key) {
+        local.remove(key);
+        byte[] byteKey = getByteKey(key);
+        RedisUtils.executePipelined(backend -> {
+            backend.del(byteKey);
+            backend.sRem(keysKey, byteKey);
+        });
+    }
+
+    /**
+     * 按key集合分批删除，不用KEYS扫描整个库；删除的同时从集合中移除，不影响clear期间新put的key
+     */
+    @Override
+    public void clear() {
+        local.clear();
+        Set<byte[]> keys = RedisUtils.execute(backend -> backend.sMembers(keysKey));
+        if (keys == null || keys.isEmpty()) {
+            return;
+        }
+        List<byte[]> batch = new ArrayList<>(Math.min(keys.size(), CLEAR_BATCH_SIZE));
+        for (Iterator<byte[]> it = keys.iterator(); it.hasNext(); ) {
+            batch.add(it.next());
+            if (batch.size() == CLEAR_BATCH_SIZE || !it.hasNext()) {
+                byte[][] members = batch.toArray(new byte[batch.size()][]);
+                RedisUtils.executePipelined(backend -> {
+                    backend.del(members);
+                    backend.sRem(keysKey, members);
+                });
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 当前PENDING的位置，与abortLoading配合释放之后获得的加载权
+     */
+    static int pendingMark() {
+        return PENDING.get().size();
+    }
+
+    /**
+     * 释放当前线程在mark之后获得、还没有put的加载权：删除redis锁，唤醒本节点等待的线程
+     */
+    static void abortLoading(int mark) {
+        List<Pending> pending = PENDING.get();
+        while (pending.size() > mark) {
+            Pending p = pending.remove(pending.size() - 1);
+            logger.debug("abort loading, cache={},key={}", p.cache.name, p.key);
+            p.cache.release(p.key, p.loading);
+        }
+    }
+
+    private Loading removePending(Object key) {
+        List<Pending> pending = PENDING.get();
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Pending p = pending.get(i);
+            if (p.cache == this && p.key.equals(key)) {
+                pending.remove(i);
+                return p.loading;
+            }
+        }
+        return null;
+    }
+
+    private void release(Object key, Loading current) {
+        loading.remove(key, current);
+        //锁已超时被其他调用方获得时不删除
+        if (current.lockValue != null && !RedisUtils.removeIfEquals(getLockKey(key), current.lockValue)) {
+            logger.debug("load lock expired before release, cache={},key={}", name, key);
+        }
+        current.latch.countDown();
+    }
+
+    /**
+     * @param fromMaster 等待其他调用方加载后的读取走主库，从库可能还没有复制刚写入的值
+     */
+    private CacheEntry read(Object key, boolean fromMaster) {
+        byte[] byteKey = getByteKey(key);
+        byte[] bytes = fromMaster ? RedisUtils.getFromMaster(byteKey) : RedisUtils.get(byteKey);
+        if (SerializeUtils.isEmpty(bytes)) {
+            return null;
+        }
+        Object entry = SerializeUtils.deserialize(bytes);
+        return entry instanceof CacheEntry ? (CacheEntry) entry : null;
+    }
+
+    private CacheEntry awaitRemote(Object key) {
+        long deadline = System.currentTimeMillis() + lockTimeout;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            CacheEntry entry = read(key, true);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * XFetch：剩余时间越少、加载越慢，越早刷新
+     */
+    private boolean shouldRefreshEarly(CacheEntry entry, long now) {
+        if (beta <= 0 || entry.delta <= 0) {
+            return false;
+        }
+        double random = ThreadLocalRandom.current().nextDouble();
+        return now - entry.delta * beta * Math.log(random) >= entry.expireAt;
+    }
+
+    private boolean startLoading(Object key, long now) {
+        Loading current = new Loading(now + lockTimeout);
+        if (loading.putIfAbsent(key, current) != null) {
+            return false;
+        }
+        if (tryLock(key, current)) {
+            current.start = now;
+            PENDING.get().add(new Pending(this, key, current));
+            return true;
+        }
+        loading.remove(key, current);
+        current.latch.countDown();
+        return false;
+    }
+
+    /**
+     * 每次加锁使用不同的值，释放时只删除自己持有的锁
+     */
+    private boolean tryLock(Object key, Loading current) {
+        int seconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(lockTimeout));
+        String lockValue = UUID.randomUUID().toString();
+        if (RedisUtils.setnx(getLockKey(key), lockValue, seconds, false) == 1L) {
+            current.lockValue = lockValue;
+            return true;
+        }
+        return false;
+    }
+
+    private void putLocal(Object key, CacheEntry entry, long now) {
+        if (localMaxSize <= 0) {
+            return;
+        }
+        if (local.size() >= localMaxSize) {
+            Iterator<Object> it = local.keySet().iterator();
+            if (it.hasNext()) {
+                local.remove(it.next());
+            }
+        }
+        local.put(key, new LocalEntry(entry.value, Math.min(entry.expireAt, now + localExpire)));
+    }
+
+    private byte[] getByteKey(Object key) {
+        return SafeEncoder.encode(keyPrefix + key);
+    }
+
+    private String getLockKey(Object key) {
+        return keyPrefix + key + ":lock";
+    }
+
+    /**
+     * redis中保存的缓存值
+     */
+    static class CacheEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Object value;
+        /**
+         * 逻辑过期时间
+         */
+        private final long expireAt;
+        /**
+         * 加载耗时/毫秒
+         */
+        private final long delta;
+
+        CacheEntry(Object value, long expireAt, long delta) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.delta = delta;
+        }
+    }
+
+    private static class LocalEntry {
+        private final Object value;
+        private final long expireAt;
+
+        LocalEntry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 当前线程获得的加载权
+     */
+    private static class Pending {
+        private final RedisCache cache;
+        private final Object key;
+        private final Loading loading;
+
+        Pending(RedisCache cache, Object key, Loading loading) {
+            this.cache = cache;
+            this.key = key;
+            this.loading = loading;
+        }
+    }
+
+    private static class Loading {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final long deadline;
+        private volatile long start;
+        /**
+         * 持有的redis锁的值，未获得锁时为null
+         */
+        private volatile String lockValue;
+
+        Loading(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
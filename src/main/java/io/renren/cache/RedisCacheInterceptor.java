@@ -0,0 +1,24 @@
+package io.renren.cache;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.cache.interceptor.CacheInterceptor;
+
+/**
+ * @Cacheable拦截器
+ * <p>
+ * 未命中时RedisCache把加载权交给当前线程，方法抛出异常、或结果因unless等条件没有put时，
+ * 在返回前释放加载锁并唤醒等待的线程，不必等到lockTimeout
+ */
+public class RedisCacheInterceptor extends CacheInterceptor {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        int mark = RedisCache.pendingMark();
+        try {
+            return super.invoke(invocation);
+        } finally {
+            RedisCache.abortLoading(mark);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package io.renren.cache;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.AbstractCacheManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于RedisUtils的CacheManager，配合@Cacheable使用
+ */
+public class RedisCacheManager extends AbstractCacheManager {
+
+    /**
+     * redis key前缀
+     */
+    private String keyPrefix = "cache:";
+
+    /**
+     * 默认过期时间/秒
+     */
+    private long defaultExpire = 30 * 60;
+
+    /**
+     * 各缓存的过期时间/秒，key为缓存名
+     */
+    private Map<String, Long> expires = new HashMap<>();
+
+    /**
+     * 每个缓存的本地缓存最大数量
+     */
+    private int localMaxSize = 1000;
+
+    /**
+     * 本地缓存过期时间/毫秒
+     */
+    private long localExpire = 5000;
+
+    /**
+     * 加载锁超时时间/毫秒
+     */
+    private long lockTimeout = 3000;
+
+    /**
+     * 提前刷新系数
+     */
+    private double beta = 1.0;
+
+    private boolean allowNullValues = true;
+
+    @Override
+    protected Collection<? extends Cache> loadCaches() {
+        List<Cache> caches = new ArrayList<>();
+        for (String name : expires.keySet()) {
+            caches.add(createCache(name));
+        }
+        return caches;
+    }
+
+    @Override
+    protected Cache getMissingCache(String name) {
+        return createCache(name);
+    }
+
+    private Cache createCache(String name) {
+        Long expire = expires.get(name);
+        if (expire == null || expire <= 0) {
+            expire = defaultExpire;
+        }
+        return new RedisCache(name, keyPrefix, expire, localMaxSize, localExpire, lockTimeout, beta, allowNullValues);
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    public long getDefaultExpire() {
+        return defaultExpire;
+    }
+
+    public void setDefaultExpire(long defaultExpire) {
+        this.defaultExpire = defaultExpire;
+    }
+
+    public Map<String, Long> getExpires() {
+        return expires;
+    }
+
+    public void setExpires(Map<String, Long> expires) {
+        this.expires = expires;
+    }
+
+    public int getLocalMaxSize() {
+        return localMaxSize;
+    }
+
+    public void setLocalMaxSize(int localMaxSize) {
+        this.localMaxSize = localMaxSize;
+    }
+
+    public long getLocalExpire() {
+        return localExpire;
+    }
+
+    public void setLocalExpire(long localExpire) {
+        this.localExpire = localExpire;
+    }
+
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    public void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    public double getBeta() {
+        return beta;
+    }
+
+    public void setBeta(double beta) {
+        this.beta = beta;
+    }
+
+    public boolean isAllowNullValues() {
+        return allowNullValues;
+    }
+
+    public void setAllowNullValues(boolean allowNullValues) {
+        this.allowNullValues = allowNullValues;
+    }
+}
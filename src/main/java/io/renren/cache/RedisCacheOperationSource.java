@@ -0,0 +1,22 @@
+package io.renren.cache;
+
+import org.springframework.cache.annotation.AnnotationCacheOperationSource;
+import org.springframework.cache.interceptor.CacheOperation;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+/**
+ * @Cacheable等注解解析
+ * <p>
+ * cacheAdvisor的代理在事务代理之后创建，目标类可能已经是CGLIB代理类；与事务注解的解析一样按用户类查找方法上的注解
+ */
+public class RedisCacheOperationSource extends AnnotationCacheOperationSource {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Collection<CacheOperation> getCacheOperations(Method method, Class<?> targetClass) {
+        return super.getCacheOperations(method, targetClass != null ? ClassUtils.getUserClass(targetClass) : null);
+    }
+}
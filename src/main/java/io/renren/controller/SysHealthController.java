@@ -0,0 +1,70 @@
+package io.renren.controller;
+
+import io.renren.RedisSessionDAO;
+import io.renren.audit.LoginAuditQueue;
+import io.renren.shiro.TokenManager;
+import io.renren.utils.CountingAsyncAppender;
+import io.renren.utils.R;
+import io.renren.utils.RedisCounters;
+import io.renren.utils.StartupWarmUp;
+import io.renren.utils.ValueCompressor;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * 健康检查，负载均衡探测用，不需要登录；运行统计需要登录
+ */
+@RestController
+public class SysHealthController {
+
+	@Autowired
+	private StartupWarmUp startupWarmUp;
+
+	@Autowired
+	private RedisSessionDAO redisSessionDao;
+
+	@Autowired
+	private TokenManager tokenManager;
+
+	@Autowired
+	private RedisCounters redisCounters;
+
+	@Autowired
+	private LoginAuditQueue loginAuditQueue;
+
+	@Autowired(required = false)
+	private ValueCompressor valueCompressor;
+
+	/**
+	 * 启动预热完成前返回503
+	 */
+	@RequestMapping("health/ready")
+	public R ready(HttpServletResponse response) {
+		if(!startupWarmUp.isReady()){
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return R.error(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "warming up").put("timings", startupWarmUp.getTimings());
+		}
+		return R.ok().put("timings", startupWarmUp.getTimings());
+	}
+
+	/**
+	 * 本节点的运行统计，计数从启动开始累计
+	 */
+	@RequestMapping("health/stats")
+	public R stats() {
+		R r = R.ok()
+				.put("sessionMiss", redisSessionDao.getMissCache().getStats())
+				.put("token", tokenManager.getStats())
+				.put("counters", redisCounters.getStats())
+				.put("loginAudit", loginAuditQueue.getStats())
+				.put("logging", CountingAsyncAppender.getAllStats());
+		if(valueCompressor != null){
+			r.put("compressor", valueCompressor.getStats());
+		}
+		return r;
+	}
+}
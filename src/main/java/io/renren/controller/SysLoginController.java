@@ -1,6 +1,9 @@
 package io.renren.controller;
 
 import io.renren.RedisSessionDAO;
+import io.renren.audit.LoginAuditLog;
+import io.renren.audit.LoginAuditQueue;
+import io.renren.shiro.TokenManager;
 import io.renren.utils.R;
 import io.renren.utils.ShiroUtils;
 
@@ -43,6 +46,12 @@ public class SysLoginController extends KaptchaExtend {
 	@Autowired
 	RedisSessionDAO redisSessionDAO;
 
+	@Autowired
+	LoginAuditQueue loginAuditQueue;
+
+	@Autowired
+	TokenManager tokenManager;
+
 	@RequestMapping("captcha.jpg")
 	public void captcha(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
@@ -57,8 +66,9 @@ public class SysLoginController extends KaptchaExtend {
 	 */
 	@ResponseBody
 	@RequestMapping(value = "/sys/login", method = RequestMethod.POST)
-	public R login(HttpServletRequest request, String username, String password, String captcha,HttpServletRequest httpServletRequest)throws IOException {
+	public R login(HttpServletRequest request, HttpServletResponse response, String username, String password, String captcha,HttpServletRequest httpServletRequest)throws IOException {
 		if(!captcha.equals(getGeneratedKey(request))){
+			audit(request, username, LoginAuditLog.CAPTCHA_ERROR, "验证码不正确");
 			return R.error("验证码不正确");
 		}
 		try{
@@ -66,25 +76,47 @@ public class SysLoginController extends KaptchaExtend {
 			//sha256加密
 			password = new Sha256Hash(password).toHex();
 			UsernamePasswordToken token = new UsernamePasswordToken(username, password);
-			subject.login(token);
+			if(tokenManager.isTokenMode()){
+				//只认证，不在session中保存登录状态；退出以删除验证码用的session和sid cookie，之后的请求只带token
+				SecurityUtils.getSecurityManager().authenticate(token);
+				subject.logout();
+				tokenManager.issue(request, response, username);
+			}else{
+				subject.login(token);
+			}
 		}catch (UnknownAccountException e) {
+			audit(request, username, LoginAuditLog.UNKNOWN_ACCOUNT, e.getMessage());
 			return R.error(e.getMessage());
 		}catch (IncorrectCredentialsException e) {
+			audit(request, username, LoginAuditLog.INCORRECT_CREDENTIALS, e.getMessage());
 			return R.error(e.getMessage());
 		}catch (LockedAccountException e) {
+			audit(request, username, LoginAuditLog.LOCKED_ACCOUNT, e.getMessage());
 			return R.error(e.getMessage());
 		}catch (AuthenticationException e) {
+			audit(request, username, LoginAuditLog.AUTH_FAILED, e.getMessage());
 			return R.error("账户验证失败");
 		}
 	    
+		audit(request, username, LoginAuditLog.SUCCESS, null);
 		return R.ok();
 	}
+
+	/**
+	 * 记录登录日志，异步批量写入数据库
+	 */
+	private void audit(HttpServletRequest request, String username, String status, String message) {
+		loginAuditQueue.offer(new LoginAuditLog(username, request.getRemoteAddr(), status, message));
+	}
 	
 	/**
 	 * 退出
 	 */
 	@RequestMapping(value = "logout", method = RequestMethod.GET)
-	public String logout() {
+	public String logout(HttpServletRequest request, HttpServletResponse response) {
+		if(tokenManager.isTokenMode()){
+			tokenManager.revoke(request, response);
+		}
 		SecurityUtils.getSubject().logout();
 		return "redirect:login.html";
 	}
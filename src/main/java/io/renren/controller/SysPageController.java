@@ -1,6 +1,13 @@
 package io.renren.controller;
 
-import org.apache.shiro.SecurityUtils;
+import io.renren.utils.VelocityPageCache;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -14,10 +21,29 @@ import org.springframework.web.bind.annotation.RequestMapping;
  */
 @Controller
 public class SysPageController {
+
+	@Autowired
+	private VelocityPageCache velocityPageCache;
 	
 	@RequestMapping("sys/{url}.html")
-	public String page(@PathVariable("url") String url){
-		System.out.println(SecurityUtils.getSubject().isAuthenticated());
-		return "sys/" + url + ".html";
+	public void page(@PathVariable("url") String url, HttpServletRequest request, 
+			HttpServletResponse response) throws IOException {
+		VelocityPageCache.Page page = velocityPageCache.get("sys/" + url + ".html");
+		if(page == null){
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		//页面未变化，直接返回304
+		response.setHeader("ETag", page.getEtag());
+		response.setHeader("Cache-Control", "no-cache");
+		if(page.matches(request.getHeader("If-None-Match"))){
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		response.setContentType("text/html;charset=UTF-8");
+		response.setContentLength(page.getBody().length);
+		response.getOutputStream().write(page.getBody());
 	}
 }
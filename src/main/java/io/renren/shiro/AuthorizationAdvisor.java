@@ -0,0 +1,139 @@
+package io.renren.shiro;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.shiro.authz.aop.AuthenticatedAnnotationHandler;
+import org.apache.shiro.authz.aop.AuthorizingAnnotationHandler;
+import org.apache.shiro.authz.aop.GuestAnnotationHandler;
+import org.apache.shiro.authz.aop.PermissionAnnotationHandler;
+import org.apache.shiro.authz.aop.RoleAnnotationHandler;
+import org.apache.shiro.authz.aop.UserAnnotationHandler;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.aop.support.StaticMethodMatcherPointcutAdvisor;
+import org.springframework.core.annotation.AnnotationUtils;
+
+/**
+ * Shiro注解权限检查(@RequiresPermissions、@RequiresRoles等)
+ *
+ * 替代AuthorizationAttributeSourceAdvisor：每个方法的注解只解析一次并缓存检查计划，
+ * 调用时只需查找缓存再执行权限判断；同一线程内重复拦截同一方法时只检查一次
+ */
+public class AuthorizationAdvisor extends StaticMethodMatcherPointcutAdvisor {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 与Shiro AnnotationsAuthorizingMethodInterceptor的检查顺序一致
+	 */
+	private static final AuthorizingAnnotationHandler[] HANDLERS = {
+			new RoleAnnotationHandler(),
+			new PermissionAnnotationHandler(),
+			new AuthenticatedAnnotationHandler(),
+			new UserAnnotationHandler(),
+			new GuestAnnotationHandler()
+	};
+
+	private static final Check[] NO_CHECKS = new Check[0];
+
+	/**
+	 * 当前线程正在检查的方法
+	 */
+	private static final ThreadLocal<Method> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * 目标类 -> 方法 -> 检查计划
+	 */
+	private final ConcurrentMap<Class<?>, ConcurrentMap<Method, Check[]>> plans = new ConcurrentHashMap<>();
+
+	public AuthorizationAdvisor() {
+		setAdvice(new MethodInterceptor() {
+			@Override
+			public Object invoke(MethodInvocation mi) throws Throwable {
+				Method method = mi.getMethod();
+				if (CURRENT.get() == method) {
+					return mi.proceed();
+				}
+				Object target = mi.getThis();
+				Check[] checks = getChecks(method, target != null ? AopUtils.getTargetClass(target) : method.getDeclaringClass());
+				if (checks.length == 0) {
+					return mi.proceed();
+				}
+				for (Check check : checks) {
+					check.handler.assertAuthorized(check.annotation);
+				}
+				Method previous = CURRENT.get();
+				CURRENT.set(method);
+				try {
+					return mi.proceed();
+				} finally {
+					if (previous == null) {
+						CURRENT.remove();
+					} else {
+						CURRENT.set(previous);
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public boolean matches(Method method, Class targetClass) {
+		return getChecks(method, targetClass).length > 0;
+	}
+
+	private Check[] getChecks(Method method, Class<?> targetClass) {
+		ConcurrentMap<Method, Check[]> methods = plans.get(targetClass);
+		if (methods == null) {
+			methods = new ConcurrentHashMap<>();
+			ConcurrentMap<Method, Check[]> existing = plans.putIfAbsent(targetClass, methods);
+			if (existing != null) {
+				methods = existing;
+			}
+		}
+		Check[] checks = methods.get(method);
+		if (checks == null) {
+			checks = resolve(method, targetClass);
+			methods.put(method, checks);
+		}
+		return checks;
+	}
+
+	/**
+	 * 方法上的注解优先，其次是类上的注解
+	 */
+	private Check[] resolve(Method method, Class<?> targetClass) {
+		Method specificMethod = targetClass != null ? AopUtils.getMostSpecificMethod(method, targetClass) : method;
+		List<Check> checks = new ArrayList<>();
+		for (AuthorizingAnnotationHandler handler : HANDLERS) {
+			Class<? extends Annotation> type = handler.getAnnotationClass();
+			Annotation annotation = AnnotationUtils.findAnnotation(specificMethod, type);
+			if (annotation == null && specificMethod != method) {
+				annotation = AnnotationUtils.findAnnotation(method, type);
+			}
+			if (annotation == null && targetClass != null) {
+				annotation = AnnotationUtils.findAnnotation(targetClass, type);
+			}
+			if (annotation != null) {
+				checks.add(new Check(handler, annotation));
+			}
+		}
+		return checks.isEmpty() ? NO_CHECKS : checks.toArray(new Check[checks.size()]);
+	}
+
+	private static class Check {
+		private final AuthorizingAnnotationHandler handler;
+		private final Annotation annotation;
+
+		Check(AuthorizingAnnotationHandler handler, Annotation annotation) {
+			this.handler = handler;
+			this.annotation = annotation;
+		}
+	}
+}
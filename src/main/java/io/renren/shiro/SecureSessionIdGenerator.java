@@ -0,0 +1,64 @@
+package io.renren.shiro;
+
+import java.io.Serializable;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.eis.SessionIdGenerator;
+
+/**
+ * session id生成，替代JavaUuidSessionIdGenerator
+ *
+ * UUID.randomUUID所有线程共用一个SecureRandom，登录高峰时生成session id会互相等待；
+ * 这里每个线程使用自己的SHA1PRNG，第一次使用时从系统SecureRandom取种子，之后不再有线程间的竞争。
+ * id为bytes个随机字节(默认16，即128位)的base64url编码，不带填充，16字节时为22个字符
+ */
+public class SecureSessionIdGenerator implements SessionIdGenerator {
+
+	private static final String ALGORITHM = "SHA1PRNG";
+
+	/**
+	 * 只用于给各线程的SHA1PRNG取种子
+	 */
+	private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private final ThreadLocal<SecureRandom> randoms = ThreadLocal.withInitial(SecureSessionIdGenerator::newRandom);
+
+	//随机字节数，不少于16
+	private int bytes = 16;
+
+	@Override
+	public Serializable generateId(Session session) {
+		byte[] id = new byte[bytes];
+		randoms.get().nextBytes(id);
+		return ENCODER.encodeToString(id);
+	}
+
+	private static SecureRandom newRandom() {
+		try {
+			SecureRandom random = SecureRandom.getInstance(ALGORITHM);
+			byte[] seed = new byte[32];
+			//nextBytes不会像generateSeed那样在熵不足时阻塞
+			SEED_SOURCE.nextBytes(seed);
+			random.setSeed(seed);
+			return random;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " not available", e);
+		}
+	}
+
+	public int getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(int bytes) {
+		if (bytes < 16) {
+			throw new IllegalArgumentException("session id needs at least 16 random bytes");
+		}
+		this.bytes = bytes;
+	}
+}
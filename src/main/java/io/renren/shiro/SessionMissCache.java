@@ -0,0 +1,107 @@
+package io.renren.shiro;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 最近在redis中不存在的sessionId，带过期时间的有界集合
+ *
+ * 过期的cookie、爬虫和伪造的sid每次请求都会读一次redis；记录下不存在的sessionId后，ttl秒内同一个id直接返回不存在。
+ * sessionId不会重复使用，所以记录的id一般不会再变为存在；保存session时仍然会移除对应的记录。
+ * 记录数达到maxSize时先清除过期的记录，仍然满时不再记录新的id，已有记录不受影响
+ */
+public class SessionMissCache {
+
+	//记录的保留时间/秒
+	private int ttl = 60;
+	//最多记录数
+	private int maxSize = 10000;
+
+	/**
+	 * sessionId -> 过期时间/毫秒
+	 */
+	private final ConcurrentHashMap<String, Long> missed = new ConcurrentHashMap<>();
+
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+
+	/**
+	 * 读取session前调用
+	 *
+	 * @return 是否最近确认过不存在
+	 */
+	public boolean isMissing(String sessionId) {
+		reads.increment();
+		Long expireAt = missed.get(sessionId);
+		if (expireAt == null) {
+			return false;
+		}
+		if (expireAt <= System.currentTimeMillis()) {
+			missed.remove(sessionId, expireAt);
+			return false;
+		}
+		hits.increment();
+		return true;
+	}
+
+	/**
+	 * 记录redis中不存在的sessionId
+	 */
+	public void recordMiss(String sessionId) {
+		misses.increment();
+		long now = System.currentTimeMillis();
+		if (missed.size() >= maxSize) {
+			missed.values().removeIf(expireAt -> expireAt <= now);
+			if (missed.size() >= maxSize) {
+				overflows.increment();
+				return;
+			}
+		}
+		missed.put(sessionId, now + ttl * 1000L);
+	}
+
+	/**
+	 * 创建、保存session时调用
+	 */
+	public void invalidate(String sessionId) {
+		missed.remove(sessionId);
+	}
+
+	/**
+	 * 统计：reads读取次数，hits本地拦截次数，misses读redis后不存在的次数，
+	 * missRate不存在的比例(本地拦截 + redis中不存在)，overflows集合满未记录的次数
+	 */
+	public Map<String, Object> getStats() {
+		long readCount = reads.sum();
+		long hitCount = hits.sum();
+		long missCount = misses.sum();
+		Map<String, Object> stats = new HashMap<>();
+		stats.put("size", missed.size());
+		stats.put("reads", readCount);
+		stats.put("hits", hitCount);
+		stats.put("misses", missCount);
+		stats.put("missRate", readCount == 0 ? 0 : (double) (hitCount + missCount) / readCount);
+		stats.put("overflows", overflows.sum());
+		return stats;
+	}
+
+	public int getTtl() {
+		return ttl;
+	}
+
+	public void setTtl(int ttl) {
+		this.ttl = ttl;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+}
@@ -0,0 +1,73 @@
+package io.renren.shiro;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.realm.Realm;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.util.ThreadContext;
+import org.apache.shiro.web.filter.authc.FormAuthenticationFilter;
+import org.apache.shiro.web.subject.WebSubject;
+import org.apache.shiro.web.util.WebUtils;
+
+/**
+ * 替代authc过滤器
+ *
+ * session模式时与authc一致；token模式时校验cookie中的签名token，通过后为当前请求创建已登录、不能创建session的Subject，
+ * 不读取也不写入redis中的session；未通过时直接跳转登录页，不在session中保存原请求
+ */
+public class TokenAuthenticationFilter extends FormAuthenticationFilter {
+
+	private TokenManager tokenManager;
+
+	/**
+	 * 登录用的realm，Subject的principal以它的名字登记
+	 */
+	private Realm realm;
+
+	@Override
+	protected boolean isAccessAllowed(ServletRequest request, ServletResponse response, Object mappedValue) {
+		if (!tokenManager.isTokenMode()) {
+			return super.isAccessAllowed(request, response, mappedValue);
+		}
+		HttpServletRequest httpRequest = WebUtils.toHttp(request);
+		HttpServletResponse httpResponse = WebUtils.toHttp(response);
+		TokenManager.Claims claims = tokenManager.verify(httpRequest, httpResponse);
+		if (claims == null) {
+			return false;
+		}
+		//与NoSessionCreationFilter一致，之后的request.getSession()、subject.getSession()不会创建session
+		request.setAttribute(DefaultSubjectContext.SESSION_CREATION_ENABLED, Boolean.FALSE);
+		Subject subject = new WebSubject.Builder(SecurityUtils.getSecurityManager(), request, response)
+				.principals(new SimplePrincipalCollection(claims.getUsername(), realm.getName()))
+				.authenticated(true)
+				.sessionCreationEnabled(false)
+				.buildSubject();
+		//AbstractShiroFilter在请求结束后恢复原来的线程上下文
+		ThreadContext.bind(subject);
+		tokenManager.renewIfNeeded(httpRequest, httpResponse, claims);
+		return true;
+	}
+
+	@Override
+	protected boolean onAccessDenied(ServletRequest request, ServletResponse response) throws Exception {
+		if (!tokenManager.isTokenMode()) {
+			return super.onAccessDenied(request, response);
+		}
+		redirectToLogin(request, response);
+		return false;
+	}
+
+	public void setTokenManager(TokenManager tokenManager) {
+		this.tokenManager = tokenManager;
+	}
+
+	public void setRealm(Realm realm) {
+		this.realm = realm;
+	}
+}
@@ -0,0 +1,429 @@
+package io.renren.shiro;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import io.renren.utils.RedisUtils;
+import org.apache.shiro.session.mgt.eis.SessionIdGenerator;
+import org.apache.shiro.web.servlet.Cookie;
+import org.apache.shiro.web.servlet.SimpleCookie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * 签名token认证
+ *
+ * mode为token时，登录成功后不在session中保存登录状态，而是签发HMAC-SHA256签名的token放在cookie中，
+ * 之后的请求由TokenAuthenticationFilter在本地校验签名，不需要读取redis中的session；mode为session时不生效。
+ *
+ * token内容为 tokenId.过期时间.权限版本.用户名，剩余有效期不足一半时重新签发，tokenId不变。
+ * 吊销：退出时tokenId加入redis中的黑名单(token:deny)；修改用户权限、密码后调用revokeUser增加用户的权限版本
+ * (token:version:用户名)，该用户已签发的token全部失效。黑名单和权限版本在本地缓存，每refreshInterval毫秒
+ * 在后台从redis批量刷新一次，其他节点的吊销最多延迟refreshInterval生效。
+ * 多节点部署时各节点的secret必须相同。
+ */
+public class TokenManager implements InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(TokenManager.class);
+
+	public static final String MODE_SESSION = "session";
+
+	public static final String MODE_TOKEN = "token";
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static final byte[] DENY_KEY = SafeEncoder.encode("token:deny");
+
+	private static final String VERSION_KEY_PREFIX = "token:version:";
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	//session：登录状态保存在session中；token：签名token
+	private String mode = MODE_SESSION;
+	//签名密钥，为空时启动时随机生成，只适用于单节点
+	private String secret;
+	//token有效期/秒
+	private int expire = 1800;
+	//黑名单、权限版本的刷新间隔/毫秒
+	private long refreshInterval = 5000;
+
+	private Cookie cookie = new SimpleCookie("token");
+
+	private SessionIdGenerator idGenerator = new SecureSessionIdGenerator();
+
+	private ThreadLocal<Mac> macs;
+
+	/**
+	 * tokenId -> 过期时间/毫秒
+	 */
+	private final ConcurrentHashMap<String, Long> denied = new ConcurrentHashMap<>();
+
+	/**
+	 * 用户名 -> 权限版本
+	 */
+	private final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<>();
+
+	private Thread refresher;
+	private volatile boolean running;
+
+	private final LongAdder verified = new LongAdder();
+	private final LongAdder invalid = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder revoked = new LongAdder();
+	private final LongAdder renewed = new LongAdder();
+
+	@Override
+	public void afterPropertiesSet() throws GeneralSecurityException {
+		if (!MODE_SESSION.equals(mode) && !MODE_TOKEN.equals(mode)) {
+			throw new IllegalArgumentException("unknown auth mode: " + mode);
+		}
+		if (!isTokenMode()) {
+			return;
+		}
+		byte[] key;
+		if (secret == null || secret.isEmpty()) {
+			key = new byte[32];
+			new SecureRandom().nextBytes(key);
+			logger.warn("token secret not configured, using a random key, tokens are only valid on this node until restart");
+		} else {
+			key = secret.getBytes(StandardCharsets.UTF_8);
+		}
+		final SecretKeySpec keySpec = new SecretKeySpec(key, ALGORITHM);
+		//Mac不是线程安全的，每个线程一个
+		Mac.getInstance(ALGORITHM).init(keySpec);
+		macs = ThreadLocal.withInitial(() -> {
+			try {
+				Mac mac = Mac.getInstance(ALGORITHM);
+				mac.init(keySpec);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		running = true;
+		refresher = new Thread(this::run, "token-refresher");
+		refresher.setDaemon(true);
+		refresher.start();
+	}
+
+	public boolean isTokenMode() {
+		return MODE_TOKEN.equals(mode);
+	}
+
+	/**
+	 * 登录成功后签发token写入cookie
+	 */
+	public void issue(HttpServletRequest request, HttpServletResponse response, String username) {
+		//登录时从redis读取最新的权限版本，避免用缓存中的旧版本签发后立即失效
+		long version = loadVersion(username);
+		versions.put(username, new Version(version));
+		write(request, response, new Claims((String) idGenerator.generateId(null),
+				System.currentTimeMillis() / 1000 + expire, version, username));
+	}
+
+	/**
+	 * 从cookie读取token并校验，失败时返回null
+	 */
+	public Claims verify(HttpServletRequest request, HttpServletResponse response) {
+		String token = cookie.readValue(request, response);
+		return token == null ? null : verify(token);
+	}
+
+	public Claims verify(String token) {
+		Claims claims = parse(token);
+		if (claims == null) {
+			invalid.increment();
+			return null;
+		}
+		if (claims.expireAt <= System.currentTimeMillis() / 1000) {
+			expired.increment();
+			return null;
+		}
+		if (denied.containsKey(claims.tokenId) || claims.version != currentVersion(claims.username)) {
+			revoked.increment();
+			return null;
+		}
+		verified.increment();
+		return claims;
+	}
+
+	/**
+	 * 剩余有效期不足一半时重新签发
+	 */
+	public void renewIfNeeded(HttpServletRequest request, HttpServletResponse response, Claims claims) {
+		long now = System.currentTimeMillis() / 1000;
+		if (claims.expireAt - now < expire / 2) {
+			write(request, response, new Claims(claims.tokenId, now + expire, claims.version, claims.username));
+			renewed.increment();
+		}
+	}
+
+	/**
+	 * 退出：当前token加入黑名单，删除cookie
+	 */
+	public void revoke(HttpServletRequest request, HttpServletResponse response) {
+		Claims claims = verify(request, response);
+		cookie.removeFrom(request, response);
+		if (claims == null) {
+			return;
+		}
+		//重新签发的token与原token的tokenId相同，黑名单保留到最后一次可能签发的token过期
+		long expireAt = System.currentTimeMillis() + expire * 1000L;
+		denied.put(claims.tokenId, expireAt);
+		RedisUtils.execute(backend -> backend.sAdd(DENY_KEY, SafeEncoder.encode(claims.tokenId + "." + expireAt)));
+	}
+
+	/**
+	 * 增加用户的权限版本，该用户已签发的token全部失效，修改权限、密码、禁用用户后调用
+	 */
+	public void revokeUser(String username) {
+		long version = RedisUtils.incr(VERSION_KEY_PREFIX + username);
+		versions.put(username, new Version(version));
+	}
+
+	private void write(HttpServletRequest request, HttpServletResponse response, Claims claims) {
+		String payload = ENCODER.encodeToString(SafeEncoder.encode(
+				claims.tokenId + "." + claims.expireAt + "." + claims.version + "." + claims.username));
+		Cookie tokenCookie = new SimpleCookie(cookie);
+		tokenCookie.setValue(payload + "." + sign(payload));
+		tokenCookie.saveTo(request, response);
+	}
+
+	private Claims parse(String token) {
+		int index = token.lastIndexOf('.');
+		if (index <= 0) {
+			return null;
+		}
+		String payload = token.substring(0, index);
+		try {
+			byte[] signature = DECODER.decode(token.substring(index + 1));
+			if (!MessageDigest.isEqual(signature, macs.get().doFinal(SafeEncoder.encode(payload)))) {
+				return null;
+			}
+			String[] parts = SafeEncoder.encode(DECODER.decode(payload)).split("\\.", 4);
+			if (parts.length != 4) {
+				return null;
+			}
+			return new Claims(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]);
+		} catch (IllegalArgumentException e) {
+			//base64、数字格式错误
+			return null;
+		}
+	}
+
+	private String sign(String payload) {
+		return ENCODER.encodeToString(macs.get().doFinal(SafeEncoder.encode(payload)));
+	}
+
+	private long currentVersion(String username) {
+		Version version = versions.get(username);
+		if (version == null) {
+			//本节点第一次见到该用户
+			version = new Version(loadVersion(username));
+			Version existing = versions.putIfAbsent(username, version);
+			if (existing != null) {
+				version = existing;
+			}
+		}
+		version.lastUsed = System.currentTimeMillis();
+		return version.value;
+	}
+
+	private static long loadVersion(String username) {
+		byte[] value = RedisUtils.execute(backend -> backend.get(SafeEncoder.encode(VERSION_KEY_PREFIX + username)));
+		return value == null ? 0 : Long.parseLong(SafeEncoder.encode(value));
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				Thread.sleep(refreshInterval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				refresh();
+			} catch (Exception e) {
+				logger.error("refresh token deny list and versions failed", e);
+			}
+		}
+	}
+
+	/**
+	 * 从redis刷新黑名单和权限版本，删除过期的黑名单项，不再使用的用户从缓存中移除
+	 */
+	private void refresh() {
+		long now = System.currentTimeMillis();
+		Set<byte[]> members = RedisUtils.execute(backend -> backend.sMembers(DENY_KEY));
+		List<byte[]> stale = new ArrayList<>();
+		for (byte[] member : members) {
+			String value = SafeEncoder.encode(member);
+			int index = value.lastIndexOf('.');
+			long expireAt = Long.parseLong(value.substring(index + 1));
+			if (expireAt <= now) {
+				stale.add(member);
+			} else {
+				denied.put(value.substring(0, index), expireAt);
+			}
+		}
+		if (!stale.isEmpty()) {
+			RedisUtils.execute(backend -> backend.sRem(DENY_KEY, stale.toArray(new byte[stale.size()][])));
+		}
+		denied.values().removeIf(expireAt -> expireAt <= now);
+
+		List<String> usernames = new ArrayList<>();
+		for (Iterator<Map.Entry<String, Version>> it = versions.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Version> entry = it.next();
+			if (now - entry.getValue().lastUsed > expire * 1000L) {
+				it.remove();
+			} else {
+				usernames.add(entry.getKey());
+			}
+		}
+		if (usernames.isEmpty()) {
+			return;
+		}
+		List<Object> results = RedisUtils.executePipelined(backend -> {
+			for (String username : usernames) {
+				backend.get(SafeEncoder.encode(VERSION_KEY_PREFIX + username));
+			}
+		});
+		for (int i = 0; i < usernames.size(); i++) {
+			Version version = versions.get(usernames.get(i));
+			if (version != null) {
+				Object value = results.get(i);
+				//版本只增加，避免覆盖刷新期间revokeUser设置的新版本
+				version.value = Math.max(version.value, value == null ? 0 : Long.parseLong(SafeEncoder.encode((byte[]) value)));
+			}
+		}
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		if (refresher != null) {
+			running = false;
+			refresher.interrupt();
+			refresher.join(refreshInterval);
+		}
+	}
+
+	/**
+	 * 校验统计
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<>();
+		stats.put("verified", verified.sum());
+		stats.put("invalid", invalid.sum());
+		stats.put("expired", expired.sum());
+		stats.put("revoked", revoked.sum());
+		stats.put("renewed", renewed.sum());
+		stats.put("denied", denied.size());
+		stats.put("users", versions.size());
+		return stats;
+	}
+
+	public String getMode() {
+		return mode;
+	}
+
+	public void setMode(String mode) {
+		this.mode = mode;
+	}
+
+	public void setSecret(String secret) {
+		this.secret = secret;
+	}
+
+	public int getExpire() {
+		return expire;
+	}
+
+	public void setExpire(int expire) {
+		this.expire = expire;
+	}
+
+	public long getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	public Cookie getCookie() {
+		return cookie;
+	}
+
+	public void setCookie(Cookie cookie) {
+		this.cookie = cookie;
+	}
+
+	public void setIdGenerator(SessionIdGenerator idGenerator) {
+		this.idGenerator = idGenerator;
+	}
+
+	/**
+	 * token中的信息
+	 */
+	public static class Claims {
+		private final String tokenId;
+		//过期时间/秒
+		private final long expireAt;
+		private final long version;
+		private final String username;
+
+		Claims(String tokenId, long expireAt, long version, String username) {
+			this.tokenId = tokenId;
+			this.expireAt = expireAt;
+			this.version = version;
+			this.username = username;
+		}
+
+		public String getTokenId() {
+			return tokenId;
+		}
+
+		public long getExpireAt() {
+			return expireAt;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+	}
+
+	private static class Version {
+		volatile long value;
+		volatile long lastUsed = System.currentTimeMillis();
+
+		Version(long value) {
+			this.value = value;
+		}
+	}
+}
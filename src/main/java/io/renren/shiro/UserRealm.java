@@ -8,6 +8,8 @@ import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.SimpleAuthorizationInfo;
 import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.subject.PrincipalCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * 认证
@@ -17,6 +19,7 @@ import org.apache.shiro.subject.PrincipalCollection;
  * @date 2016年11月10日 上午11:55:49
  */
 public class UserRealm extends AuthorizingRealm {
+	private Logger logger = LoggerFactory.getLogger(getClass());
 
     /**
      * 授权(验证权限时调用)
@@ -35,8 +38,7 @@ public class UserRealm extends AuthorizingRealm {
 			AuthenticationToken token) throws AuthenticationException {
 		String username = (String) token.getPrincipal();
         String password = new String((char[]) token.getCredentials());
-		System.out.println(username);
-		System.out.println(password);
+		logger.debug("doGetAuthenticationInfo username={}", username);
 		SimpleAuthenticationInfo info = new SimpleAuthenticationInfo(username, password, getName());
         return info;
 	}
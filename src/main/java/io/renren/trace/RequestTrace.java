@@ -0,0 +1,165 @@
+package io.renren.trace;
+
+/**
+ * 请求耗时分解
+ * <p>
+ * 每个被采样的请求在当前线程上保存一个RequestTrace，各层在调用前后执行start/stop，累计每类span的耗时和次数；
+ * 未采样的请求current()为null，start/stop只有一次ThreadLocal读取的开销。
+ * span按调用层次嵌套统计：shiro包含session，session包含redis
+ */
+public final class RequestTrace {
+
+    public enum Span {
+        /**
+         * 进入Controller之前的过滤器链(主要是Shiro)
+         */
+        SHIRO,
+        /**
+         * RedisSessionDAO读写
+         */
+        SESSION,
+        /**
+         * RedisUtils调用
+         */
+        REDIS,
+        /**
+         * Druid执行SQL
+         */
+        SQL,
+        /**
+         * 页面渲染
+         */
+        VIEW,
+        /**
+         * fastjson序列化
+         */
+        JSON;
+
+        private final String label = name().toLowerCase();
+    }
+
+    private static final Span[] SPANS = Span.values();
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    private final long startTime = System.nanoTime();
+
+    private final long[] nanos = new long[SPANS.length];
+
+    private final int[] counts = new int[SPANS.length];
+
+    private final long[] started = new long[SPANS.length];
+
+    /**
+     * 同类span重入的深度，只统计最外层
+     */
+    private final int[] depth = new int[SPANS.length];
+
+    private RequestTrace() {
+    }
+
+    /**
+     * 开始跟踪当前请求
+     */
+    public static RequestTrace begin() {
+        RequestTrace trace = new RequestTrace();
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * 结束跟踪当前请求，未结束的span按当前时间结束
+     */
+    public static void end() {
+        RequestTrace trace = CURRENT.get();
+        if (trace == null) {
+            return;
+        }
+        CURRENT.remove();
+        long now = System.nanoTime();
+        for (int i = 0; i < SPANS.length; i++) {
+            if (trace.depth[i] > 0) {
+                trace.nanos[i] += now - trace.started[i];
+                trace.depth[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * @return 当前请求的跟踪，未采样时为null
+     */
+    public static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    public static void start(Span span) {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            int i = span.ordinal();
+            if (trace.depth[i]++ == 0) {
+                trace.started[i] = System.nanoTime();
+                trace.counts[i]++;
+            }
+        }
+    }
+
+    public static void stop(Span span) {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            int i = span.ordinal();
+            if (trace.depth[i] > 0 && --trace.depth[i] == 0) {
+                trace.nanos[i] += System.nanoTime() - trace.started[i];
+            }
+        }
+    }
+
+    /**
+     * @return 请求开始到现在的耗时/纳秒
+     */
+    public long getElapsed() {
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Server-Timing响应头，如 session;desc="x2";dur=1.3, redis;desc="x3";dur=0.9, total;dur=12.5
+     * 未结束的span按当前时间计算
+     */
+    public String toServerTiming() {
+        long now = System.nanoTime();
+        StringBuilder builder = new StringBuilder(128);
+        for (int i = 0; i < SPANS.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            builder.append(SPANS[i].label).append(";desc=\"x").append(counts[i]).append("\";dur=")
+                    .append(millis(duration(i, now))).append(", ");
+        }
+        return builder.append("total;dur=").append(millis(now - startTime)).toString();
+    }
+
+    /**
+     * 慢请求日志中的耗时分解，如 shiro=3.1ms/1 session=2.0ms/2 redis=1.5ms/3
+     */
+    public String toLogString() {
+        long now = System.nanoTime();
+        StringBuilder builder = new StringBuilder(128);
+        for (int i = 0; i < SPANS.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(SPANS[i].label).append('=').append(millis(duration(i, now))).append("ms/").append(counts[i]);
+        }
+        return builder.toString();
+    }
+
+    private long duration(int i, long now) {
+        return depth[i] > 0 ? nanos[i] + now - started[i] : nanos[i];
+    }
+
+    static double millis(long nanos) {
+        return Math.round(nanos / 100000.0) / 10.0;
+    }
+}
@@ -0,0 +1,23 @@
+package io.renren.trace;
+
+import com.alibaba.fastjson.support.spring.FastJsonHttpMessageConverter;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.IOException;
+
+/**
+ * 响应序列化耗时计入json span
+ */
+public class TraceFastJsonHttpMessageConverter extends FastJsonHttpMessageConverter {
+
+    @Override
+    protected void writeInternal(Object obj, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        RequestTrace.start(RequestTrace.Span.JSON);
+        try {
+            super.writeInternal(obj, outputMessage);
+        } finally {
+            RequestTrace.stop(RequestTrace.Span.JSON);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package io.renren.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 请求耗时跟踪，需要放在所有过滤器之前
+ * <p>
+ * 按sampleRate采样，被采样的请求记录各层耗时(见RequestTrace)，serverTiming开启时在响应提交前写入Server-Timing响应头；
+ * 耗时超过slowThreshold的请求输出一行慢请求日志，被采样的请求带耗时分解
+ */
+public class TraceFilter extends OncePerRequestFilter {
+
+    private static Logger logger = LoggerFactory.getLogger(TraceFilter.class);
+
+    /**
+     * 采样比例，0~1，1为全部采样，0为不采样(仍记录慢请求总耗时)
+     */
+    private double sampleRate = 1.0;
+
+    /**
+     * 慢请求阈值/毫秒，小于等于0时不输出慢请求日志
+     */
+    private long slowThreshold = 1000;
+
+    /**
+     * 是否输出Server-Timing响应头，默认关闭：响应头对所有客户端(包括未登录的)可见，会暴露redis、sql等各层耗时，只在排查问题时开启
+     */
+    private boolean serverTiming = false;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long start = System.nanoTime();
+        boolean sampled = sampleRate >= 1.0 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+        if (!sampled) {
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                logSlow(request, response, System.nanoTime() - start, null);
+            }
+            return;
+        }
+
+        RequestTrace trace = RequestTrace.begin();
+        TimingResponse timingResponse = serverTiming ? new TimingResponse(response, trace) : null;
+        RequestTrace.start(RequestTrace.Span.SHIRO);
+        try {
+            chain.doFilter(request, timingResponse != null ? timingResponse : response);
+            if (timingResponse != null) {
+                timingResponse.writeServerTiming();
+            }
+        } finally {
+            RequestTrace.end();
+            logSlow(request, response, trace.getElapsed(), trace);
+        }
+    }
+
+    private void logSlow(HttpServletRequest request, HttpServletResponse response, long nanos, RequestTrace trace) {
+        if (slowThreshold <= 0 || nanos < slowThreshold * 1000000) {
+            return;
+        }
+        logger.warn("slow request method={} uri={} status={} total={}ms {}", request.getMethod(), request.getRequestURI(),
+                response.getStatus(), RequestTrace.millis(nanos), trace != null ? trace.toLogString() : "sampled=false");
+    }
+
+    /**
+     * 第一次输出响应内容前写入Server-Timing，此时还在执行的span(如json、view)计算到当前时间
+     */
+    private static class TimingResponse extends HttpServletResponseWrapper {
+        private final RequestTrace trace;
+        private boolean written;
+
+        TimingResponse(HttpServletResponse response, RequestTrace trace) {
+            super(response);
+            this.trace = trace;
+        }
+
+        void writeServerTiming() {
+            if (written) {
+                return;
+            }
+            written = true;
+            if (!isCommitted()) {
+                addHeader("Server-Timing", trace.toServerTiming());
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            writeServerTiming();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            writeServerTiming();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            writeServerTiming();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            writeServerTiming();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            writeServerTiming();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            writeServerTiming();
+            super.sendRedirect(location);
+        }
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public void setSlowThreshold(long slowThreshold) {
+        this.slowThreshold = slowThreshold;
+    }
+
+    public boolean isServerTiming() {
+        return serverTiming;
+    }
+
+    public void setServerTiming(boolean serverTiming) {
+        this.serverTiming = serverTiming;
+    }
+}
@@ -0,0 +1,31 @@
+package io.renren.trace;
+
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 进入Controller时结束shiro span，视图渲染(postHandle到afterCompletion)计入view span
+ */
+public class TraceInterceptor extends HandlerInterceptorAdapter {
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        RequestTrace.stop(RequestTrace.Span.SHIRO);
+        return true;
+    }
+
+    @Override
+    public void postHandle(HttpServletRequest request, HttpServletResponse response, Object handler, ModelAndView modelAndView) {
+        if (modelAndView != null) {
+            RequestTrace.start(RequestTrace.Span.VIEW);
+        }
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        RequestTrace.stop(RequestTrace.Span.VIEW);
+    }
+}
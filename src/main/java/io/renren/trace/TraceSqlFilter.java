@@ -0,0 +1,56 @@
+package io.renren.trace;
+
+import com.alibaba.druid.filter.FilterEventAdapter;
+import com.alibaba.druid.proxy.jdbc.ResultSetProxy;
+import com.alibaba.druid.proxy.jdbc.StatementProxy;
+
+/**
+ * Druid过滤器，SQL执行耗时计入sql span
+ */
+public class TraceSqlFilter extends FilterEventAdapter {
+
+    @Override
+    protected void statementExecuteBefore(StatementProxy statement, String sql) {
+        RequestTrace.start(RequestTrace.Span.SQL);
+    }
+
+    @Override
+    protected void statementExecuteAfter(StatementProxy statement, String sql, boolean result) {
+        RequestTrace.stop(RequestTrace.Span.SQL);
+    }
+
+    @Override
+    protected void statementExecuteQueryBefore(StatementProxy statement, String sql) {
+        RequestTrace.start(RequestTrace.Span.SQL);
+    }
+
+    @Override
+    protected void statementExecuteQueryAfter(StatementProxy statement, String sql, ResultSetProxy resultSet) {
+        RequestTrace.stop(RequestTrace.Span.SQL);
+    }
+
+    @Override
+    protected void statementExecuteUpdateBefore(StatementProxy statement, String sql) {
+        RequestTrace.start(RequestTrace.Span.SQL);
+    }
+
+    @Override
+    protected void statementExecuteUpdateAfter(StatementProxy statement, String sql, int updateCount) {
+        RequestTrace.stop(RequestTrace.Span.SQL);
+    }
+
+    @Override
+    protected void statementExecuteBatchBefore(StatementProxy statement) {
+        RequestTrace.start(RequestTrace.Span.SQL);
+    }
+
+    @Override
+    protected void statementExecuteBatchAfter(StatementProxy statement, int[] result) {
+        RequestTrace.stop(RequestTrace.Span.SQL);
+    }
+
+    @Override
+    protected void statement_executeErrorAfter(StatementProxy statement, String sql, Throwable error) {
+        RequestTrace.stop(RequestTrace.Span.SQL);
+    }
+}
@@ -0,0 +1,91 @@
+package io.renren.utils;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.lang.reflect.Field;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统计丢弃数量的AsyncAppender
+ * <p>
+ * Blocking为false时缓冲区满的日志会被丢弃，AsyncAppender只在之后输出一条丢弃汇总；
+ * 这里在同一把锁下判断缓冲区是否已满并计数，由/health/stats输出
+ */
+public class CountingAsyncAppender extends AsyncAppender {
+
+    private final List<?> buffer = getBuffer();
+
+    private final LongAdder appended = new LongAdder();
+
+    private final LongAdder discarded = new LongAdder();
+
+    @Override
+    public void append(LoggingEvent event) {
+        appended.increment();
+        if (getBlocking() || buffer == null) {
+            super.append(event);
+            return;
+        }
+        //与AsyncAppender.append使用同一把锁，判断结果与其是否丢弃一致
+        synchronized (buffer) {
+            if (buffer.size() >= getBufferSize() && getBufferSize() > 0) {
+                discarded.increment();
+            }
+            super.append(event);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("appended", appended.sum());
+        stats.put("discarded", discarded.sum());
+        stats.put("queued", buffer != null ? buffer.size() : 0);
+        stats.put("blocking", getBlocking());
+        return stats;
+    }
+
+    /**
+     * 所有logger上配置的CountingAsyncAppender的统计，key为appender名
+     */
+    public static Map<String, Object> getAllStats() {
+        Map<String, Object> stats = new HashMap<>();
+        collect(LogManager.getRootLogger(), stats);
+        Enumeration<?> loggers = LogManager.getCurrentLoggers();
+        while (loggers.hasMoreElements()) {
+            collect((Logger) loggers.nextElement(), stats);
+        }
+        return stats;
+    }
+
+    private static void collect(Logger logger, Map<String, Object> stats) {
+        Enumeration<?> appenders = logger.getAllAppenders();
+        while (appenders.hasMoreElements()) {
+            Appender appender = (Appender) appenders.nextElement();
+            if (appender instanceof CountingAsyncAppender) {
+                stats.put(appender.getName(), ((CountingAsyncAppender) appender).getStats());
+            }
+        }
+    }
+
+    /**
+     * AsyncAppender的事件缓冲区，append和后台线程都在它上面加锁；log4j 1.2没有公开访问方法
+     */
+    private List<?> getBuffer() {
+        try {
+            Field field = AsyncAppender.class.getDeclaredField("buffer");
+            field.setAccessible(true);
+            return (List<?>) field.get(this);
+        } catch (Exception e) {
+            //取不到时不计数，不影响日志输出
+            return null;
+        }
+    }
+}
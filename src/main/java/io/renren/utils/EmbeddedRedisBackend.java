@@ -0,0 +1,1098 @@
+package io.renren.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.util.Assert;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 进程内存储，单机部署和测试环境使用，不需要redis服务
+ * <p>
+ * 数据保存在ConcurrentHashMap中，同一个key的写操作在map的compute中执行；value和返回的byte[]不复制，调用方不要修改。
+ * <p>
+ * 过期由分层时间轮处理：共4层，每层64个槽，第一层每槽tickMillis，上一层每槽是下一层转一圈的时长，
+ * 节点随时间逐层下移，后台线程每个tick处理第一层的一个槽。生存时间延长(如session续期)时不移动节点，
+ * 节点到期时发现key未过期再按新的过期时间放入；读写时也会检查过期。
+ * <p>
+ * 估算的内存占用超过maxMemory时按近似LRU淘汰：循环遍历key，每次取sampleSize个，淘汰其中最久未访问的
+ */
+public class EmbeddedRedisBackend implements RedisBackend, InitializingBean, DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(EmbeddedRedisBackend.class);
+
+    private static final int WHEEL_BITS = 6;
+
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    private static final int LEVELS = 4;
+
+    /**
+     * 每个key除key和value之外的估算内存/字节
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * hash、list、set中每个元素除内容之外的估算内存/字节
+     */
+    private static final int ELEMENT_OVERHEAD = 48;
+
+    //时间轮每槽的时长/毫秒
+    private long tickMillis = 100;
+    //估算内存上限/字节，不大于0时不限制
+    private long maxMemory = 64L * 1024 * 1024;
+    //每次淘汰时比较的key数量
+    private int sampleSize = 16;
+
+    private final ConcurrentHashMap<Key, Entry> data = new ConcurrentHashMap<>();
+
+    private final AtomicLong usedMemory = new AtomicLong();
+
+    private final LongAdder expiredKeys = new LongAdder();
+
+    private final LongAdder evictedKeys = new LongAdder();
+
+    private final Object wheelLock = new Object();
+
+    private final List<Timer>[][] wheels = newWheels();
+
+    private final long startMillis = System.currentTimeMillis();
+
+    //下一个要处理的tick，时间轮中的位置都相对于它计算
+    private long nextTick;
+
+    private final Object evictionLock = new Object();
+
+    private Iterator<Map.Entry<Key, Entry>> evictionCursor;
+
+    //bRPopLPush等待中的线程数，没有等待时push不加锁
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final Object pushSignal = new Object();
+
+    private long pushes;
+
+    private Thread expiryThread;
+
+    private volatile boolean running;
+
+    @Override
+    public void afterPropertiesSet() {
+        running = true;
+        expiryThread = new Thread(this::run, "embedded-redis-expiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+        logger.info("embedded redis backend started, maxMemory={}", maxMemory);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        if (expiryThread != null) {
+            expiryThread.interrupt();
+            expiryThread.join(1000);
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        Entry entry = live(new Key(key), System.currentTimeMillis());
+        return entry == null ? null : string(entry);
+    }
+
+    @Override
+    public byte[] getFromMaster(byte[] key) {
+        return get(key);
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+        Assert.notNull(value, "value must not be null");
+        long now = System.currentTimeMillis();
+        Key k = Key.copyOf(key);
+        data.compute(k, (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                entry = new Entry(value, now);
+            }
+            entry.value = value;
+            entry.expireAt = 0;
+            resize(entry, ENTRY_OVERHEAD + key.length + value.length);
+            return entry;
+        });
+        evictIfNeeded();
+    }
+
+    @Override
+    public void setEx(byte[] key, int seconds, byte[] value) {
+        if (seconds <= 0) {
+            throw new InvalidDataAccessApiUsageException("ERR invalid expire time in setex");
+        }
+        Assert.notNull(value, "value must not be null");
+        long now = System.currentTimeMillis();
+        Key k = Key.copyOf(key);
+        data.compute(k, (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                entry = new Entry(value, now);
+            }
+            entry.value = value;
+            resize(entry, ENTRY_OVERHEAD + key.length + value.length);
+            expireAt(k, entry, now + seconds * 1000L);
+            return entry;
+        });
+        evictIfNeeded();
+    }
+
+    @Override
+    public Boolean setNx(byte[] key, byte[] value, int seconds) {
+        //与SET NX EX一致
+        if (seconds <= 0) {
+            throw new InvalidDataAccessApiUsageException("ERR invalid expire time in set");
+        }
+        Assert.notNull(value, "value must not be null");
+        long now = System.currentTimeMillis();
+        Key k = Key.copyOf(key);
+        boolean[] set = new boolean[1];
+        data.compute(k, (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry != null) {
+                return entry;
+            }
+            set[0] = true;
+            entry = new Entry(value, now);
+            resize(entry, ENTRY_OVERHEAD + key.length + value.length);
+            expireAt(k, entry, now + seconds * 1000L);
+            return entry;
+        });
+        evictIfNeeded();
+        return set[0];
+    }
+
+    @Override
+    public Long del(byte[]... keys) {
+        long now = System.currentTimeMillis();
+        long count = 0;
+        for (byte[] key : keys) {
+            boolean[] deleted = new boolean[1];
+            data.computeIfPresent(new Key(key), (ignored, entry) -> {
+                deleted[0] = current(entry, now) != null;
+                release(entry);
+                return null;
+            });
+            if (deleted[0]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Boolean delIfEquals(byte[] key, byte[] value) {
+        long now = System.currentTimeMillis();
+        boolean[] deleted = new boolean[1];
+        data.computeIfPresent(new Key(key), (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null || !Arrays.equals(string(entry), value)) {
+                return entry;
+            }
+            deleted[0] = true;
+            release(entry);
+            return null;
+        });
+        return deleted[0];
+    }
+
+    @Override
+    public Boolean exists(byte[] key) {
+        return live(new Key(key), System.currentTimeMillis()) != null;
+    }
+
+    @Override
+    public Boolean expire(byte[] key, int seconds) {
+        long now = System.currentTimeMillis();
+        boolean[] found = new boolean[1];
+        data.computeIfPresent(Key.copyOf(key), (k, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                return null;
+            }
+            found[0] = true;
+            if (seconds <= 0) {
+                release(entry);
+                return null;
+            }
+            expireAt(k, entry, now + seconds * 1000L);
+            return entry;
+        });
+        return found[0];
+    }
+
+    @Override
+    public Long ttl(byte[] key) {
+        long now = System.currentTimeMillis();
+        Entry entry = live(new Key(key), now);
+        if (entry == null) {
+            return -2L;
+        }
+        long expireAt = entry.expireAt;
+        return expireAt == 0 ? -1L : (expireAt - now + 500) / 1000;
+    }
+
+    @Override
+    public Set<byte[]> keys(byte[] pattern) {
+        long now = System.currentTimeMillis();
+        Set<byte[]> keys = new LinkedHashSet<>();
+        for (Map.Entry<Key, Entry> entry : data.entrySet()) {
+            if (!entry.getValue().expired(now) && matches(pattern, entry.getKey().bytes)) {
+                keys.add(entry.getKey().bytes);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public Long dbSize() {
+        return (long) data.size();
+    }
+
+    @Override
+    public void flushDb() {
+        for (Key key : data.keySet()) {
+            data.computeIfPresent(key, (k, entry) -> {
+                release(entry);
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public Long incrBy(byte[] key, long delta) {
+        long now = System.currentTimeMillis();
+        Key k = Key.copyOf(key);
+        long[] result = new long[1];
+        data.compute(k, (ignored, entry) -> {
+            entry = current(entry, now);
+            long value = 0;
+            if (entry != null) {
+                try {
+                    value = Long.parseLong(new String(string(entry), StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    throw new InvalidDataAccessApiUsageException("ERR value is not an integer or out of range");
+                }
+            }
+            try {
+                result[0] = Math.addExact(value, delta);
+            } catch (ArithmeticException e) {
+                throw new InvalidDataAccessApiUsageException("ERR increment or decrement would overflow");
+            }
+            return putNumber(entry, key, String.valueOf(result[0]), now);
+        });
+        evictIfNeeded();
+        return result[0];
+    }
+
+    @Override
+    public Double incrByFloat(byte[] key, double delta) {
+        long now = System.currentTimeMillis();
+        Key k = Key.copyOf(key);
+        double[] result = new double[1];
+        data.compute(k, (ignored, entry) -> {
+            entry = current(entry, now);
+            double value = 0;
+            if (entry != null) {
+                try {
+                    value = Double.parseDouble(new String(string(entry), StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    throw new InvalidDataAccessApiUsageException("ERR value is not a valid float");
+                }
+            }
+            result[0] = value + delta;
+            if (Double.isNaN(result[0]) || Double.isInfinite(result[0])) {
+                throw new InvalidDataAccessApiUsageException("ERR increment would produce NaN or Infinity");
+            }
+            return putNumber(entry, key, BigDecimal.valueOf(result[0]).stripTrailingZeros().toPlainString(), now);
+        });
+        evictIfNeeded();
+        return result[0];
+    }
+
+    @Override
+    public Boolean hSet(byte[] key, byte[] field, byte[] value) {
+        Assert.notNull(value, "value must not be null");
+        long now = System.currentTimeMillis();
+        Key k = Key.copyOf(key);
+        boolean[] created = new boolean[1];
+        data.compute(k, (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                entry = new Entry(new HashMap<Key, byte[]>(), now);
+                resize(entry, ENTRY_OVERHEAD + key.length);
+            }
+            byte[] old = hash(entry).put(Key.copyOf(field), value);
+            created[0] = old == null;
+            resize(entry, entry.size + (old == null ? ELEMENT_OVERHEAD + field.length + value.length : value.length - old.length));
+            return entry;
+        });
+        evictIfNeeded();
+        return created[0];
+    }
+
+    @Override
+    public Long hDel(byte[] key, byte[]... fields) {
+        long now = System.currentTimeMillis();
+        long[] count = new long[1];
+        data.computeIfPresent(new Key(key), (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                return null;
+            }
+            Map<Key, byte[]> hash = hash(entry);
+            long size = entry.size;
+            for (byte[] field : fields) {
+                byte[] old = hash.remove(new Key(field));
+                if (old != null) {
+                    count[0]++;
+                    size -= ELEMENT_OVERHEAD + field.length + old.length;
+                }
+            }
+            return shrink(entry, size, hash.isEmpty());
+        });
+        return count[0];
+    }
+
+    @Override
+    public Long lPush(byte[] key, byte[]... values) {
+        return push(key, values, true);
+    }
+
+    @Override
+    public Long rPush(byte[] key, byte[]... values) {
+        return push(key, values, false);
+    }
+
+    @Override
+    public Long lLen(byte[] key) {
+        long now = System.currentTimeMillis();
+        long[] length = new long[1];
+        data.computeIfPresent(new Key(key), (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry != null) {
+                length[0] = list(entry).size();
+            }
+            return entry;
+        });
+        return length[0];
+    }
+
+    /**
+     * 取出和放入分两步，中间的短暂时间内元素不在任何一个list中
+     */
+    @Override
+    public byte[] rPopLPush(byte[] source, byte[] destination) {
+        long now = System.currentTimeMillis();
+        byte[][] popped = new byte[1][];
+        data.computeIfPresent(new Key(source), (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                return null;
+            }
+            Deque<byte[]> list = list(entry);
+            popped[0] = list.pollLast();
+            return shrink(entry, entry.size - ELEMENT_OVERHEAD - popped[0].length, list.isEmpty());
+        });
+        if (popped[0] != null) {
+            push(destination, new byte[][]{popped[0]}, true);
+        }
+        return popped[0];
+    }
+
+    @Override
+    public byte[] bRPopLPush(int timeout, byte[] source, byte[] destination) {
+        long deadline = timeout == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout * 1000L;
+        //先登记再尝试取出，之后的push一定会通知到
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                long seen;
+                synchronized (pushSignal) {
+                    seen = pushes;
+                }
+                byte[] value = rPopLPush(source, destination);
+                if (value != null) {
+                    return value;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                synchronized (pushSignal) {
+                    if (pushes == seen) {
+                        pushSignal.wait(remaining);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    @Override
+    public List<byte[]> lRange(byte[] key, long start, long end) {
+        long now = System.currentTimeMillis();
+        List<byte[]> range = new ArrayList<>();
+        data.computeIfPresent(new Key(key), (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                return null;
+            }
+            entry.accessed = now;
+            Deque<byte[]> list = list(entry);
+            int size = list.size();
+            long from = start < 0 ? Math.max(0, size + start) : start;
+            long to = Math.min(size - 1, end < 0 ? size + end : end);
+            int index = 0;
+            for (Iterator<byte[]> it = list.iterator(); it.hasNext() && index <= to; index++) {
+                byte[] value = it.next();
+                if (index >= from) {
+                    range.add(value);
+                }
+            }
+            return entry;
+        });
+        return range;
+    }
+
+    @Override
+    public Long lRem(byte[] key, long count, byte[] value) {
+        long now = System.currentTimeMillis();
+        long[] removed = new long[1];
+        data.computeIfPresent(new Key(key), (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                return null;
+            }
+            Deque<byte[]> list = list(entry);
+            Iterator<byte[]> it = count < 0 ? list.descendingIterator() : list.iterator();
+            long limit = count == 0 ? Long.MAX_VALUE : Math.abs(count);
+            while (it.hasNext() && removed[0] < limit) {
+                if (Arrays.equals(it.next(), value)) {
+                    it.remove();
+                    removed[0]++;
+                }
+            }
+            return shrink(entry, entry.size - removed[0] * (ELEMENT_OVERHEAD + value.length), list.isEmpty());
+        });
+        return removed[0];
+    }
+
+    @Override
+    public Long sAdd(byte[] key, byte[]... members) {
+        long now = System.currentTimeMillis();
+        Key k = Key.copyOf(key);
+        long[] added = new long[1];
+        data.compute(k, (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                entry = new Entry(new HashSet<Key>(), now);
+                resize(entry, ENTRY_OVERHEAD + key.length);
+            }
+            Set<Key> set = members(entry);
+            long size = entry.size;
+            for (byte[] member : members) {
+                if (set.add(Key.copyOf(member))) {
+                    added[0]++;
+                    size += ELEMENT_OVERHEAD + member.length;
+                }
+            }
+            resize(entry, size);
+            return entry;
+        });
+        evictIfNeeded();
+        return added[0];
+    }
+
+    @Override
+    public Long sRem(byte[] key, byte[]... members) {
+        long now = System.currentTimeMillis();
+        long[] removed = new long[1];
+        data.computeIfPresent(new Key(key), (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                return null;
+            }
+            Set<Key> set = members(entry);
+            long size = entry.size;
+            for (byte[] member : members) {
+                if (set.remove(new Key(member))) {
+                    removed[0]++;
+                    size -= ELEMENT_OVERHEAD + member.length;
+                }
+            }
+            return shrink(entry, size, set.isEmpty());
+        });
+        return removed[0];
+    }
+
+    @Override
+    public Set<byte[]> sMembers(byte[] key) {
+        long now = System.currentTimeMillis();
+        Set<byte[]> result = new LinkedHashSet<>();
+        data.computeIfPresent(new Key(key), (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                return null;
+            }
+            entry.accessed = now;
+            for (Key member : members(entry)) {
+                result.add(member.bytes);
+            }
+            return entry;
+        });
+        return result;
+    }
+
+    @Override
+    public <T> T execute(Function<RedisBackend, T> action) {
+        return action.apply(this);
+    }
+
+    /**
+     * 没有网络往返，依次执行并收集有返回值的操作的结果
+     */
+    @Override
+    public List<Object> executePipelined(Consumer<RedisBackend> action) {
+        List<Object> results = new ArrayList<>();
+        RedisBackend pipeline = (RedisBackend) Proxy.newProxyInstance(RedisBackend.class.getClassLoader(),
+                new Class<?>[]{RedisBackend.class}, (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(this, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (method.getDeclaringClass() == RedisBackend.class && method.getReturnType() != void.class) {
+                        results.add(result);
+                    }
+                    return result;
+                });
+        action.accept(pipeline);
+        return results;
+    }
+
+    private Long push(byte[] key, byte[][] values, boolean head) {
+        long now = System.currentTimeMillis();
+        Key k = Key.copyOf(key);
+        long[] length = new long[1];
+        data.compute(k, (ignored, entry) -> {
+            entry = current(entry, now);
+            if (entry == null) {
+                entry = new Entry(new ArrayDeque<byte[]>(), now);
+                resize(entry, ENTRY_OVERHEAD + key.length);
+            }
+            Deque<byte[]> list = list(entry);
+            long size = entry.size;
+            for (byte[] value : values) {
+                if (head) {
+                    list.addFirst(value);
+                } else {
+                    list.addLast(value);
+                }
+                size += ELEMENT_OVERHEAD + value.length;
+            }
+            resize(entry, size);
+            length[0] = list.size();
+            return entry;
+        });
+        if (waiters.get() > 0) {
+            synchronized (pushSignal) {
+                pushes++;
+                pushSignal.notifyAll();
+            }
+        }
+        evictIfNeeded();
+        return length[0];
+    }
+
+    /**
+     * 未过期的key，同时更新访问时间
+     */
+    private Entry live(Key key, long now) {
+        Entry entry = data.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expired(now)) {
+            data.computeIfPresent(key, (k, e) -> current(e, now));
+            return null;
+        }
+        entry.accessed = now;
+        return entry;
+    }
+
+    /**
+     * 在compute中调用，已过期的key释放后返回null
+     */
+    private Entry current(Entry entry, long now) {
+        if (entry != null && entry.expired(now)) {
+            release(entry);
+            expiredKeys.increment();
+            return null;
+        }
+        return entry;
+    }
+
+    private Entry putNumber(Entry entry, byte[] key, String number, long now) {
+        byte[] value = number.getBytes(StandardCharsets.US_ASCII);
+        if (entry == null) {
+            entry = new Entry(value, now);
+        }
+        entry.value = value;
+        resize(entry, ENTRY_OVERHEAD + key.length + value.length);
+        return entry;
+    }
+
+    /**
+     * 删除元素后更新估算内存，集合为空时删除key
+     */
+    private Entry shrink(Entry entry, long size, boolean empty) {
+        if (empty) {
+            release(entry);
+            return null;
+        }
+        resize(entry, size);
+        return entry;
+    }
+
+    private void resize(Entry entry, long size) {
+        usedMemory.addAndGet(size - entry.size);
+        entry.size = size;
+    }
+
+    private void release(Entry entry) {
+        usedMemory.addAndGet(-entry.size);
+        entry.size = 0;
+    }
+
+    private static byte[] string(Entry entry) {
+        Object value = entry.value;
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        throw wrongType();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Key, byte[]> hash(Entry entry) {
+        if (entry.value instanceof Map) {
+            return (Map<Key, byte[]>) entry.value;
+        }
+        throw wrongType();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Deque<byte[]> list(Entry entry) {
+        if (entry.value instanceof Deque) {
+            return (Deque<byte[]>) entry.value;
+        }
+        throw wrongType();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Key> members(Entry entry) {
+        if (entry.value instanceof Set) {
+            return (Set<Key>) entry.value;
+        }
+        throw wrongType();
+    }
+
+    private static InvalidDataAccessApiUsageException wrongType() {
+        return new InvalidDataAccessApiUsageException("WRONGTYPE Operation against a key holding the wrong kind of value");
+    }
+
+    //******************过期********************
+
+    /**
+     * 在compute中调用；新的过期时间比节点早时换一个节点，旧节点到期时被忽略
+     */
+    private void expireAt(Key key, Entry entry, long expireAt) {
+        entry.expireAt = expireAt;
+        if (entry.timer == null || expireAt < entry.timer.deadline) {
+            entry.timer = new Timer(key);
+            schedule(entry.timer, expireAt);
+        }
+    }
+
+    private void schedule(Timer timer, long deadline) {
+        synchronized (wheelLock) {
+            timer.deadline = deadline;
+            place(timer);
+        }
+    }
+
+    /**
+     * 按到期tick与nextTick的距离选择层，超出最上层范围的先放在最上层的最远处
+     */
+    private void place(Timer timer) {
+        long tick = Math.max(tickOf(timer), nextTick);
+        long delta = tick - nextTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        long span = 1L << (WHEEL_BITS * LEVELS);
+        if (delta >= span) {
+            tick = nextTick + span - 1;
+        }
+        wheels[level][(int) (tick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1)].add(timer);
+    }
+
+    private long tickOf(Timer timer) {
+        return (timer.deadline - startMillis + tickMillis - 1) / tickMillis;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long target = (now - startMillis) / tickMillis;
+            try {
+                while (advance(target, now)) {
+                    //处理到当前时间
+                }
+            } catch (Exception e) {
+                logger.error("embedded redis expiry failed", e);
+            }
+        }
+    }
+
+    /**
+     * 处理一个tick：上层槽中的节点下移，取出第一层当前槽中到期的节点
+     *
+     * @return 是否处理了一个tick
+     */
+    private boolean advance(long target, long now) {
+        List<Timer> due = new ArrayList<>();
+        synchronized (wheelLock) {
+            long tick = nextTick;
+            if (tick > target) {
+                return false;
+            }
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                    for (Timer timer : take(level, (int) (tick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1))) {
+                        place(timer);
+                    }
+                }
+            }
+            List<Timer> timers = take(0, (int) tick & (WHEEL_SIZE - 1));
+            nextTick = tick + 1;
+            for (Timer timer : timers) {
+                if (tickOf(timer) > tick) {
+                    place(timer);
+                } else {
+                    due.add(timer);
+                }
+            }
+        }
+        for (Timer timer : due) {
+            fire(timer, now);
+        }
+        return true;
+    }
+
+    private List<Timer> take(int level, int slot) {
+        List<Timer> timers = wheels[level][slot];
+        if (timers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        wheels[level][slot] = new ArrayList<>();
+        return timers;
+    }
+
+    /**
+     * 节点已被替换或key已删除时忽略；key续期过则按新的过期时间重新放入
+     */
+    private void fire(Timer timer, long now) {
+        data.computeIfPresent(timer.key, (k, entry) -> {
+            if (entry.timer != timer) {
+                return entry;
+            }
+            if (entry.expireAt == 0) {
+                entry.timer = null;
+                return entry;
+            }
+            if (entry.expireAt <= now) {
+                release(entry);
+                expiredKeys.increment();
+                return null;
+            }
+            schedule(timer, entry.expireAt);
+            return entry;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Timer>[][] newWheels() {
+        List<Timer>[][] wheels = new List[LEVELS][WHEEL_SIZE];
+        for (List<Timer>[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new ArrayList<>();
+            }
+        }
+        return wheels;
+    }
+
+    //******************淘汰********************
+
+    private void evictIfNeeded() {
+        if (maxMemory <= 0 || usedMemory.get() <= maxMemory) {
+            return;
+        }
+        synchronized (evictionLock) {
+            while (usedMemory.get() > maxMemory) {
+                Map.Entry<Key, Entry> victim = null;
+                for (int i = 0; i < sampleSize; i++) {
+                    if (evictionCursor == null || !evictionCursor.hasNext()) {
+                        evictionCursor = data.entrySet().iterator();
+                        if (!evictionCursor.hasNext()) {
+                            break;
+                        }
+                    }
+                    Map.Entry<Key, Entry> candidate = evictionCursor.next();
+                    if (victim == null || candidate.getValue().accessed < victim.getValue().accessed) {
+                        victim = candidate;
+                    }
+                }
+                if (victim == null) {
+                    return;
+                }
+                Entry entry = victim.getValue();
+                data.computeIfPresent(victim.getKey(), (k, e) -> {
+                    if (e != entry) {
+                        return e;
+                    }
+                    release(e);
+                    evictedKeys.increment();
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * redis的glob匹配：*、?、[abc]、[^a-z]，\转义
+     */
+    static boolean matches(byte[] pattern, byte[] key) {
+        int p = 0;
+        int k = 0;
+        int starP = -1;
+        int starK = 0;
+        while (k < key.length) {
+            if (p < pattern.length && pattern[p] == '*') {
+                starP = p++;
+                starK = k;
+                continue;
+            }
+            if (p < pattern.length) {
+                int next = matchOne(pattern, p, key[k]);
+                if (next >= 0) {
+                    p = next;
+                    k++;
+                    continue;
+                }
+            }
+            if (starP < 0) {
+                return false;
+            }
+            p = starP + 1;
+            k = ++starK;
+        }
+        while (p < pattern.length && pattern[p] == '*') {
+            p++;
+        }
+        return p == pattern.length;
+    }
+
+    /**
+     * @return 匹配时返回pattern中下一个位置，否则返回-1
+     */
+    private static int matchOne(byte[] pattern, int p, byte c) {
+        switch (pattern[p]) {
+            case '?':
+                return p + 1;
+            case '[': {
+                int i = p + 1;
+                boolean not = i < pattern.length && pattern[i] == '^';
+                if (not) {
+                    i++;
+                }
+                boolean matched = false;
+                while (i < pattern.length && pattern[i] != ']') {
+                    if (pattern[i] == '\\' && i + 1 < pattern.length) {
+                        matched |= pattern[i + 1] == c;
+                        i += 2;
+                    } else if (i + 2 < pattern.length && pattern[i + 1] == '-' && pattern[i + 2] != ']') {
+                        int from = Math.min(pattern[i] & 0xff, pattern[i + 2] & 0xff);
+                        int to = Math.max(pattern[i] & 0xff, pattern[i + 2] & 0xff);
+                        matched |= (c & 0xff) >= from && (c & 0xff) <= to;
+                        i += 3;
+                    } else {
+                        matched |= pattern[i] == c;
+                        i++;
+                    }
+                }
+                if (i >= pattern.length) {
+                    //没有]时[按普通字符处理
+                    return c == '[' ? p + 1 : -1;
+                }
+                return matched != not ? i + 1 : -1;
+            }
+            case '\\':
+                if (p + 1 < pattern.length) {
+                    return pattern[p + 1] == c ? p + 2 : -1;
+                }
+                return c == '\\' ? p + 1 : -1;
+            default:
+                return pattern[p] == c ? p + 1 : -1;
+        }
+    }
+
+    /**
+     * 估算的内存占用/字节
+     */
+    public long getUsedMemory() {
+        return usedMemory.get();
+    }
+
+    public long getExpiredKeys() {
+        return expiredKeys.sum();
+    }
+
+    public long getEvictedKeys() {
+        return evictedKeys.sum();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public void setTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public void setMaxMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    private static final class Key {
+
+        final byte[] bytes;
+
+        final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        /**
+         * 保存到map中的key复制一份，调用方修改数组不影响map
+         */
+        static Key copyOf(byte[] bytes) {
+            return new Key(bytes.clone());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+
+        //byte[]、HashMap、ArrayDeque或HashSet
+        volatile Object value;
+
+        //过期时间/毫秒，0为不过期
+        volatile long expireAt;
+
+        volatile long accessed;
+
+        //估算内存，在compute中修改
+        long size;
+
+        //时间轮中的节点，在compute中修改
+        Timer timer;
+
+        Entry(Object value, long now) {
+            this.value = value;
+            this.accessed = now;
+        }
+
+        boolean expired(long now) {
+            long expireAt = this.expireAt;
+            return expireAt != 0 && expireAt <= now;
+        }
+    }
+
+    private static final class Timer {
+
+        final Key key;
+
+        //放入时间轮时的过期时间
+        long deadline;
+
+        Timer(Key key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.renren.utils;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * RedisUtils和RedisSessionDAO使用的存储操作，语义与同名的redis命令一致
+ * <p>
+ * RemoteRedisBackend访问redis服务；EmbeddedRedisBackend在进程内保存数据，用于单机部署和测试环境
+ */
+public interface RedisBackend {
+
+    byte[] get(byte[] key);
+
+    /**
+     * 与get一致，但总是读主库，用于不能接受复制延迟的数据(session、等待其他调用方加载的缓存)。
+     * 不会让当前线程之后的读操作固定走主库
+     */
+    byte[] getFromMaster(byte[] key);
+
+    void set(byte[] key, byte[] value);
+
+    void setEx(byte[] key, int seconds, byte[] value);
+
+    /**
+     * key不存在时设置value，设置成功时同时设置生存时间
+     *
+     * @return 是否设置成功
+     */
+    Boolean setNx(byte[] key, byte[] value, int seconds);
+
+    Long del(byte[]... keys);
+
+    /**
+     * key的值等于value时删除，比较和删除是原子的，用于释放自己持有的锁
+     *
+     * @return 是否删除
+     */
+    Boolean delIfEquals(byte[] key, byte[] value);
+
+    Boolean exists(byte[] key);
+
+    /**
+     * seconds不大于0时删除key
+     */
+    Boolean expire(byte[] key, int seconds);
+
+    /**
+     * @return 剩余生存时间/秒，key不存在时为-2，没有生存时间时为-1
+     */
+    Long ttl(byte[] key);
+
+    /**
+     * @param pattern 支持*、?、[abc]通配符
+     */
+    Set<byte[]> keys(byte[] pattern);
+
+    Long dbSize();
+
+    void flushDb();
+
+    Long incrBy(byte[] key, long delta);
+
+    Double incrByFloat(byte[] key, double delta);
+
+    Boolean hSet(byte[] key, byte[] field, byte[] value);
+
+    Long hDel(byte[] key, byte[]... fields);
+
+    Long lPush(byte[] key, byte[]... values);
+
+    Long rPush(byte[] key, byte[]... values);
+
+    Long lLen(byte[] key);
+
+    /**
+     * 从source尾部取出一个元素放到destination头部
+     *
+     * @return 取出的元素，source为空时返回null
+     */
+    byte[] rPopLPush(byte[] source, byte[] destination);
+
+    /**
+     * 与rPopLPush一致，source为空时最多等待timeout秒，0为一直等待
+     */
+    byte[] bRPopLPush(int timeout, byte[] source, byte[] destination);
+
+    /**
+     * @param start 下标从0开始，负数表示从后往前
+     * @param end   包含end，-1表示最后一个元素
+     */
+    List<byte[]> lRange(byte[] key, long start, long end);
+
+    /**
+     * @param count 为0时删除所有，大于0时从前往后删除count个，小于0时从后往前删除
+     */
+    Long lRem(byte[] key, long count, byte[] value);
+
+    Long sAdd(byte[] key, byte[]... members);
+
+    Long sRem(byte[] key, byte[]... members);
+
+    Set<byte[]> sMembers(byte[] key);
+
+    /**
+     * 在主库的同一连接上执行多个操作
+     */
+    <T> T execute(Function<RedisBackend, T> action);
+
+    /**
+     * 在主库上以pipeline方式执行多个操作，action中各操作的返回值无效
+     *
+     * @return 有返回值的操作的结果，顺序与操作一致
+     */
+    List<Object> executePipelined(Consumer<RedisBackend> action);
+}
@@ -0,0 +1,421 @@
+package io.renren.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本地累加、定时批量写入redis的计数器，用于访问量、登录次数等高频计数
+ * <p>
+ * 增加计数只累加到本地的LongAdder/DoubleAdder，不访问redis；后台线程每flushInterval毫秒把各计数器新增的部分
+ * 用INCRBY/INCRBYFLOAT在一次pipeline中写入redis，redis的请求数只与计数器个数有关，与计数频率无关。
+ * 写入失败的部分保留在本地，下次重试；应用关闭时写入剩余部分。
+ * <p>
+ * get返回redis的值加上本地未写入的部分，redis的值在写入时更新，没有写入时每个计数器每flushInterval最多读取一次redis，
+ * 其他节点的计数最多延迟两个flushInterval；读取由CAS更新loadedAt成功的线程执行，不占用flushLock，
+ * 其他线程返回上次的值(计数器第一次读取时等待结果)。getExact每次读取redis当前值加上本地未写入的部分。
+ * 连续idleFlushes次没有新增的计数器从本地移除，之后再计数时重新创建。
+ */
+public class RedisCounters implements InitializingBean, DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(RedisCounters.class);
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, FloatCounter> floatCounters = new ConcurrentHashMap<>();
+
+    /**
+     * 已从map移除，下次写入后丢弃
+     */
+    private final List<Counter> retiredCounters = new ArrayList<>();
+
+    private final List<FloatCounter> retiredFloatCounters = new ArrayList<>();
+
+    //写入间隔/毫秒
+    private long flushInterval = 1000;
+    //连续多少次没有新增后从本地移除
+    private int idleFlushes = 60;
+
+    /**
+     * 写入redis与getExact互斥，保证getExact不会漏算或重复计算正在写入的部分
+     */
+    private final Object flushLock = new Object();
+
+    private Thread flusher;
+    private volatile boolean running;
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    @Override
+    public void afterPropertiesSet() {
+        running = true;
+        flusher = new Thread(this::run, "redis-counter-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void incr(String key) {
+        incrBy(key, 1);
+    }
+
+    public void decr(String key) {
+        incrBy(key, -1);
+    }
+
+    public void decrBy(String key, long num) {
+        incrBy(key, -num);
+    }
+
+    public void incrBy(String key, long num) {
+        counters.computeIfAbsent(key, Counter::new).value.add(num);
+    }
+
+    public void incrByFloat(String key, double num) {
+        floatCounters.computeIfAbsent(key, FloatCounter::new).value.add(num);
+    }
+
+    /**
+     * 近似值：最近一次写入或读取时redis的值 + 本地未写入的部分
+     */
+    public long get(String key) {
+        Counter counter = counters.computeIfAbsent(key, Counter::new);
+        long loadedAt = counter.loadedAt.get();
+        if (loadedAt == 0) {
+            //第一次读取时等待读取结果，不返回只有本地部分的值
+            synchronized (counter.loadLock) {
+                loadedAt = counter.loadedAt.get();
+                if (loadedAt == 0) {
+                    load(counter, loadedAt);
+                }
+            }
+        } else if (System.currentTimeMillis() - loadedAt > flushInterval) {
+            load(counter, loadedAt);
+        }
+        return counter.base + counter.value.sum();
+    }
+
+    public double getFloat(String key) {
+        FloatCounter counter = floatCounters.computeIfAbsent(key, FloatCounter::new);
+        long loadedAt = counter.loadedAt.get();
+        if (loadedAt == 0) {
+            synchronized (counter.loadLock) {
+                loadedAt = counter.loadedAt.get();
+                if (loadedAt == 0) {
+                    load(counter, loadedAt);
+                }
+            }
+        } else if (System.currentTimeMillis() - loadedAt > flushInterval) {
+            load(counter, loadedAt);
+        }
+        return counter.base + counter.value.sum();
+    }
+
+    /**
+     * CAS更新loadedAt成功的线程读取redis，其他线程不等待；
+     * 读取开始时正在写入、或读取期间开始写入该计数器时丢弃读到的值，写入结束时会用INCRBY的结果更新base
+     */
+    private void load(Counter counter, long loadedAt) {
+        long now = System.currentTimeMillis();
+        if (!counter.loadedAt.compareAndSet(loadedAt, now)) {
+            return;
+        }
+        int seq = counter.flushSeq;
+        if ((seq & 1) != 0) {
+            return;
+        }
+        long value;
+        try {
+            value = readLong(counter.key);
+        } catch (RuntimeException e) {
+            counter.loadedAt.compareAndSet(now, loadedAt);
+            throw e;
+        }
+        synchronized (counter) {
+            if (counter.flushSeq == seq) {
+                counter.base = value - counter.flushed;
+            }
+        }
+    }
+
+    private void load(FloatCounter counter, long loadedAt) {
+        long now = System.currentTimeMillis();
+        if (!counter.loadedAt.compareAndSet(loadedAt, now)) {
+            return;
+        }
+        int seq = counter.flushSeq;
+        if ((seq & 1) != 0) {
+            return;
+        }
+        double value;
+        try {
+            value = readDouble(counter.key);
+        } catch (RuntimeException e) {
+            counter.loadedAt.compareAndSet(now, loadedAt);
+            throw e;
+        }
+        synchronized (counter) {
+            if (counter.flushSeq == seq) {
+                counter.base = value - counter.flushed;
+            }
+        }
+    }
+
+    /**
+     * redis当前值 + 本地未写入的部分，每次访问redis；其他节点未写入的部分不包括在内
+     */
+    public long getExact(String key) {
+        synchronized (flushLock) {
+            long value = readLong(SafeEncoder.encode(key));
+            Counter counter = counters.get(key);
+            return counter == null ? value : value + counter.value.sum() - counter.flushed;
+        }
+    }
+
+    public double getExactFloat(String key) {
+        synchronized (flushLock) {
+            double value = readDouble(SafeEncoder.encode(key));
+            FloatCounter counter = floatCounters.get(key);
+            return counter == null ? value : value + counter.value.sum() - counter.flushed;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(flushInterval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                flush();
+            } catch (Exception e) {
+                logger.error("flush counters failed", e);
+            }
+        }
+    }
+
+    /**
+     * 把各计数器新增的部分写入redis
+     * <p>
+     * LongAdder.sumThenReset在并发累加时可能丢失计数，所以计数器只累加不清零，每次写入sum与上次写入的sum之差
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<Counter> dirty = new ArrayList<>();
+            List<Long> deltas = new ArrayList<>();
+            List<FloatCounter> floatDirty = new ArrayList<>();
+            List<Double> floatDeltas = new ArrayList<>();
+            //上次移除的计数器可能还有移除前取到引用的线程累加的部分
+            for (Counter counter : retiredCounters) {
+                long sum = counter.value.sum();
+                if (sum != counter.flushed) {
+                    dirty.add(counter);
+                    deltas.add(sum - counter.flushed);
+                }
+            }
+            retiredCounters.clear();
+            for (FloatCounter counter : retiredFloatCounters) {
+                double sum = counter.value.sum();
+                if (sum != counter.flushed) {
+                    floatDirty.add(counter);
+                    floatDeltas.add(sum - counter.flushed);
+                }
+            }
+            retiredFloatCounters.clear();
+            for (Iterator<Counter> it = counters.values().iterator(); it.hasNext(); ) {
+                Counter counter = it.next();
+                long sum = counter.value.sum();
+                if (sum != counter.flushed) {
+                    counter.idle = 0;
+                    dirty.add(counter);
+                    deltas.add(sum - counter.flushed);
+                } else if (++counter.idle >= idleFlushes) {
+                    it.remove();
+                    retiredCounters.add(counter);
+                }
+            }
+            for (Iterator<FloatCounter> it = floatCounters.values().iterator(); it.hasNext(); ) {
+                FloatCounter counter = it.next();
+                double sum = counter.value.sum();
+                if (sum != counter.flushed) {
+                    counter.idle = 0;
+                    floatDirty.add(counter);
+                    floatDeltas.add(sum - counter.flushed);
+                } else if (++counter.idle >= idleFlushes) {
+                    it.remove();
+                    retiredFloatCounters.add(counter);
+                }
+            }
+            if (dirty.isEmpty() && floatDirty.isEmpty()) {
+                return;
+            }
+
+            for (Counter counter : dirty) {
+                counter.flushSeq++;
+            }
+            for (FloatCounter counter : floatDirty) {
+                counter.flushSeq++;
+            }
+            List<Object> results;
+            try {
+                results = RedisUtils.executePipelined(backend -> {
+                    for (int i = 0; i < dirty.size(); i++) {
+                        backend.incrBy(dirty.get(i).key, deltas.get(i));
+                    }
+                    for (int i = 0; i < floatDirty.size(); i++) {
+                        backend.incrByFloat(floatDirty.get(i).key, floatDeltas.get(i));
+                    }
+                });
+            } catch (Exception e) {
+                //flushed不变，下次重新写入这部分；已移除的计数器放回等待下次写入
+                failures.increment();
+                for (Counter counter : dirty) {
+                    synchronized (counter) {
+                        counter.flushSeq++;
+                    }
+                    if (counters.get(counter.name) != counter) {
+                        retiredCounters.add(counter);
+                    }
+                }
+                for (FloatCounter counter : floatDirty) {
+                    synchronized (counter) {
+                        counter.flushSeq++;
+                    }
+                    if (floatCounters.get(counter.name) != counter) {
+                        retiredFloatCounters.add(counter);
+                    }
+                }
+                throw e;
+            }
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < dirty.size(); i++) {
+                Counter counter = dirty.get(i);
+                synchronized (counter) {
+                    counter.flushed += deltas.get(i);
+                    counter.base = (Long) results.get(i) - counter.flushed;
+                    counter.flushSeq++;
+                }
+                counter.loadedAt.set(now);
+            }
+            for (int i = 0; i < floatDirty.size(); i++) {
+                FloatCounter counter = floatDirty.get(i);
+                synchronized (counter) {
+                    counter.flushed += floatDeltas.get(i);
+                    counter.base = (Double) results.get(dirty.size() + i) - counter.flushed;
+                    counter.flushSeq++;
+                }
+                counter.loadedAt.set(now);
+            }
+            flushes.increment();
+            commands.add(results.size());
+        }
+    }
+
+    /**
+     * INCRBY写入的值没有压缩头，直接读取
+     */
+    private static long readLong(byte[] key) {
+        byte[] value = RedisUtils.execute(backend -> backend.get(key));
+        return value == null ? 0 : Long.parseLong(SafeEncoder.encode(value));
+    }
+
+    private static double readDouble(byte[] key) {
+        byte[] value = RedisUtils.execute(backend -> backend.get(key));
+        return value == null ? 0 : Double.parseDouble(SafeEncoder.encode(value));
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        flusher.interrupt();
+        flusher.join(flushInterval);
+        try {
+            flush();
+        } catch (Exception e) {
+            logger.error("flush counters on shutdown failed", e);
+        }
+    }
+
+    /**
+     * 写入统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("counters", counters.size() + floatCounters.size());
+        stats.put("flushes", flushes.sum());
+        stats.put("commands", commands.sum());
+        stats.put("failures", failures.sum());
+        return stats;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public int getIdleFlushes() {
+        return idleFlushes;
+    }
+
+    public void setIdleFlushes(int idleFlushes) {
+        this.idleFlushes = idleFlushes;
+    }
+
+    private static class Counter {
+
+        final String name;
+        final byte[] key;
+        final LongAdder value = new LongAdder();
+        //已写入redis的sum，只在flushLock内修改
+        volatile long flushed;
+        //上次写入或读取时redis的值 - flushed，get返回base + 本地sum，一次读取即一致
+        volatile long base;
+        //开始写入时加1，写入结束后再加1，奇数表示正在写入；只在flushLock内修改
+        volatile int flushSeq;
+        //上次写入或读取redis的时间，0为还没有读取过
+        final AtomicLong loadedAt = new AtomicLong();
+        //第一次读取redis时其他线程在此等待
+        final Object loadLock = new Object();
+        int idle;
+
+        Counter(String name) {
+            this.name = name;
+            this.key = SafeEncoder.encode(name);
+        }
+    }
+
+    private static class FloatCounter {
+
+        final String name;
+        final byte[] key;
+        final DoubleAdder value = new DoubleAdder();
+        volatile double flushed;
+        volatile double base;
+        volatile int flushSeq;
+        final AtomicLong loadedAt = new AtomicLong();
+        final Object loadLock = new Object();
+        int idle;
+
+        FloatCounter(String name) {
+            this.name = name;
+            this.key = SafeEncoder.encode(name);
+        }
+    }
+}
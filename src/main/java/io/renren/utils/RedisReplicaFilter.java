@@ -0,0 +1,26 @@
+package io.renren.utils;
+
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 划定redis读写分离的请求范围，写之后的读只在同一请求内走主库，请求结束时恢复
+ */
+public class RedisReplicaFilter extends OncePerRequestFilter {
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        RedisReplicaRouter.begin();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            RedisReplicaRouter.unpin();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package io.renren.utils;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisNode;
+import org.springframework.data.redis.connection.RedisSentinelConnection;
+import org.springframework.data.redis.connection.RedisServer;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * redis读写分离
+ * <p>
+ * 写操作及写之后同一请求内的读操作走主库，其他读操作轮询从库；请求范围由RedisReplicaFilter划定，
+ * 后台线程的写操作不会让之后的读操作固定走主库；
+ * 从库可通过replicaNodes配置，或在主库使用Sentinel时通过sentinelMaster自动发现
+ */
+public class RedisReplicaRouter implements InitializingBean, DisposableBean {
+
+    private static Logger logger = LoggerFactory.getLogger(RedisReplicaRouter.class);
+
+    /**
+     * 当前线程是否只读主库：null不在请求中，FALSE请求中未写过，TRUE只读主库
+     */
+    private static final ThreadLocal<Boolean> PINNED = new ThreadLocal<>();
+
+    private RedisTemplate master;
+
+    /**
+     * 从库地址，多个用逗号分隔，如：10.0.0.2:6379,10.0.0.3:6379
+     */
+    private String replicaNodes;
+
+    /**
+     * Sentinel中的master名称，主库连接工厂使用Sentinel配置时，从Sentinel获取从库列表
+     */
+    private String sentinelMaster;
+
+    private JedisPoolConfig poolConfig;
+
+    private String password;
+
+    private int database;
+
+    private volatile List<StringRedisTemplate> replicas = new ArrayList<>();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public void afterPropertiesSet() {
+        List<RedisNode> nodes = new ArrayList<>();
+        if (StringUtils.isNotBlank(replicaNodes)) {
+            for (String node : StringUtils.split(replicaNodes, ",")) {
+                String[] hostAndPort = StringUtils.split(node.trim(), ":");
+                nodes.add(new RedisNode(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+            }
+        }
+        if (StringUtils.isNotBlank(sentinelMaster)) {
+            nodes.addAll(discoverReplicas());
+        }
+
+        List<StringRedisTemplate> templates = new ArrayList<>();
+        for (RedisNode node : nodes) {
+            templates.add(createTemplate(node));
+            logger.info("redis read replica {}:{}", node.getHost(), node.getPort());
+        }
+        this.replicas = templates;
+    }
+
+    private Collection<RedisNode> discoverReplicas() {
+        List<RedisNode> nodes = new ArrayList<>();
+        RedisConnectionFactory factory = master.getConnectionFactory();
+        if (!(factory instanceof JedisConnectionFactory) || !((JedisConnectionFactory) factory).isRedisSentinelAware()) {
+            logger.warn("sentinelMaster is set but connectionFactory is not sentinel aware");
+            return nodes;
+        }
+        RedisSentinelConnection sentinel = ((JedisConnectionFactory) factory).getSentinelConnection();
+        try {
+            for (RedisServer server : sentinel.slaves(new RedisNode.RedisNodeBuilder().withName(sentinelMaster).build())) {
+                String flags = server.getFlags();
+                if (flags != null && (flags.contains("s_down") || flags.contains("o_down") || flags.contains("disconnected"))) {
+                    continue;
+                }
+                nodes.add(new RedisNode(server.getHost(), server.getPort()));
+            }
+        } finally {
+            try {
+                sentinel.close();
+            } catch (Exception e) {
+                logger.warn("close sentinel connection failed", e);
+            }
+        }
+        return nodes;
+    }
+
+    private StringRedisTemplate createTemplate(RedisNode node) {
+        JedisConnectionFactory factory = poolConfig == null ? new JedisConnectionFactory() : new JedisConnectionFactory(poolConfig);
+        factory.setHostName(node.getHost());
+        factory.setPort(node.getPort());
+        factory.setDatabase(database);
+        if (StringUtils.isNotBlank(password)) {
+            factory.setPassword(password);
+        }
+        factory.afterPropertiesSet();
+        return new StringRedisTemplate(factory);
+    }
+
+    @Override
+    public void destroy() {
+        for (StringRedisTemplate replica : replicas) {
+            ((JedisConnectionFactory) replica.getConnectionFactory()).destroy();
+        }
+    }
+
+    /**
+     * 读操作使用的template，没有从库或当前请求已写过主库时返回主库
+     */
+    public RedisTemplate forRead() {
+        List<StringRedisTemplate> current = replicas;
+        if (current.isEmpty() || Boolean.TRUE.equals(PINNED.get())) {
+            return master;
+        }
+        return current.get((next.getAndIncrement() & Integer.MAX_VALUE) % current.size());
+    }
+
+    /**
+     * 写操作使用的template，在请求中时本请求之后的读操作都走主库
+     */
+    public RedisTemplate forWrite() {
+        pin();
+        return master;
+    }
+
+    public RedisTemplate getMaster() {
+        return master;
+    }
+
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * 请求开始时调用，之后的写操作会让本请求的读操作走主库
+     */
+    public static void begin() {
+        PINNED.set(Boolean.FALSE);
+    }
+
+    /**
+     * 写操作调用，在请求中时本请求之后的读操作走主库；不在请求中时(后台线程)不改变
+     */
+    public static void pin() {
+        if (PINNED.get() != null) {
+            PINNED.set(Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 当前线程的读操作走主库，直到unpin，不要求在请求中
+     */
+    public static void pinCurrentThread() {
+        PINNED.set(Boolean.TRUE);
+    }
+
+    /**
+     * 恢复当前线程的读写分离，请求结束时调用
+     */
+    public static void unpin() {
+        PINNED.remove();
+    }
+
+    public void setMaster(RedisTemplate master) {
+        this.master = master;
+    }
+
+    public String getReplicaNodes() {
+        return replicaNodes;
+    }
+
+    public void setReplicaNodes(String replicaNodes) {
+        this.replicaNodes = replicaNodes;
+    }
+
+    public String getSentinelMaster() {
+        return sentinelMaster;
+    }
+
+    public void setSentinelMaster(String sentinelMaster) {
+        this.sentinelMaster = sentinelMaster;
+    }
+
+    public void setPoolConfig(JedisPoolConfig poolConfig) {
+        this.poolConfig = poolConfig;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public void setDatabase(int database) {
+        this.database = database;
+    }
+}
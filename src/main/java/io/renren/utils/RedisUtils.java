@@ -1,17 +1,15 @@
 package io.renren.utils;
 
 import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.redis.connection.RedisConnection;
-import org.springframework.data.redis.core.RedisCallback;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import redis.clients.jedis.BuilderFactory;
 import redis.clients.util.SafeEncoder;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Created by jason_moo on 2018/6/19.
@@ -20,7 +18,15 @@ public class RedisUtils {
 
     private static Logger logger = LoggerFactory.getLogger(RedisUtils.class);
 
-    private static RedisTemplate template = ApplicationContextHelper.getApplicationContext().getBean(StringRedisTemplate.class);
+    /**
+     * 存储实现，未配置时使用StringRedisTemplate访问redis
+     */
+    private static RedisBackend backend = findBackend();
+
+    /**
+     * value压缩，未配置时不压缩
+     */
+    private static ValueCompressor compressor = findCompressor();
 
 
     /**
@@ -35,19 +41,16 @@ public class RedisUtils {
 
     /**
      * put object to redis,key exist by set time
+     * seconds不大于0时删除key
      *
      * @param key
      * @param value
      */
     public static void put(final String key, final Object value, final Integer seconds) {
-        template.execute((RedisConnection connection) -> {
-            String json = JSON.toJSONString(value);
-            byte[] keyBytes = SafeEncoder.encode(key);
-            connection.set(keyBytes, SafeEncoder.encode(json));
-            connection.expire(keyBytes, seconds);
-            logger.debug("setObject key={},value={}", key, json);
-            return null;
-        });
+        String json = JSON.toJSONString(value);
+        byte[] keyBytes = SafeEncoder.encode(key);
+        setEx(keyBytes, compressor.compress(keyBytes, SafeEncoder.encode(json)), seconds);
+        logger.debug("setObject key={},value={}", key, json);
     }
 
     /**
@@ -58,16 +61,12 @@ public class RedisUtils {
      * @param <T>
      * @return
      */
-    @SuppressWarnings("unchecked")
     public static <T> T get(final String key, final Class<T> clazz) {
-        return (T) template.execute((RedisConnection connection) -> {
-            byte[] keyBytes = connection.get(SafeEncoder.encode(key));
-            if (keyBytes == null || keyBytes.length == 0) {
-                return null;
-            }
-            String value = SafeEncoder.encode(keyBytes);
-            return JSONObject.parseObject(value, clazz);
-        });
+        byte[] value = compressor.decompress(backend.get(SafeEncoder.encode(key)));
+        if (value == null || value.length == 0) {
+            return null;
+        }
+        return JSON.parseObject(SafeEncoder.encode(value), clazz);
     }
 
     /**
@@ -78,7 +77,17 @@ public class RedisUtils {
      */
     public static Long remove(final String key) {
         logger.debug("removeObject:{}", key);
-        return (Long) template.execute((RedisConnection connection) -> connection.del(SafeEncoder.encode(key)));
+        return backend.del(SafeEncoder.encode(key));
+    }
+
+    /**
+     * key的值等于value时删除，value与setnx一样按JSON比较
+     *
+     * @return 是否删除
+     */
+    public static boolean removeIfEquals(final String key, final Object value) {
+        logger.debug("removeIfEquals:{}", key);
+        return Boolean.TRUE.equals(backend.delIfEquals(SafeEncoder.encode(key), SafeEncoder.encode(JSON.toJSONString(value))));
     }
 
     /**
@@ -88,7 +97,7 @@ public class RedisUtils {
      * @return
      */
     public static Long ttl(final String key) {
-        return (Long) template.execute((RedisConnection connection) -> connection.ttl(SafeEncoder.encode(key)));
+        return backend.ttl(SafeEncoder.encode(key));
     }
 
     /**
@@ -96,7 +105,7 @@ public class RedisUtils {
      */
     public static void setExpire(final String key, final int seconds) {
         logger.debug("set key={} expire time={}s", key, seconds);
-        template.execute((RedisConnection connection) -> connection.expire(SafeEncoder.encode(key), seconds));
+        backend.expire(SafeEncoder.encode(key), seconds);
     }
 
 
@@ -107,7 +116,8 @@ public class RedisUtils {
      */
     public static void hput(final String key, final String field, final Object value) {
         logger.debug("set value to field={},key={}", field, key);
-        template.execute((RedisConnection connection) -> connection.hSet(SafeEncoder.encode(key), SafeEncoder.encode(field), SerializeUtils.serialize(value)));
+        byte[] keyBytes = SafeEncoder.encode(key);
+        backend.hSet(keyBytes, SafeEncoder.encode(field), compressor.compress(keyBytes, SerializeUtils.serialize(value)));
     }
 
 
@@ -116,12 +126,42 @@ public class RedisUtils {
      */
     public static void hremove(final String key, final String field) {
         logger.debug("gremove value from key={},field={}", key, field);
-        template.execute((RedisConnection connection) -> connection.hDel(SafeEncoder.encode(key), SafeEncoder.encode(field)));
+        backend.hDel(SafeEncoder.encode(key), SafeEncoder.encode(field));
     }
 
     public static Long rpush(final String key, final String... value) {
         logger.debug("rpush value with key={},field={}", key, value);
-        return (Long) template.execute((RedisConnection connection) -> connection.rPush(SafeEncoder.encode(key), SafeEncoder.encodeMany(value)));
+        return backend.rPush(SafeEncoder.encode(key), SafeEncoder.encodeMany(value));
+    }
+
+    public static Long lpush(final String key, final String... value) {
+        logger.debug("lpush value with key={},field={}", key, value);
+        return backend.lPush(SafeEncoder.encode(key), SafeEncoder.encodeMany(value));
+    }
+
+    /**
+     * list长度，key不存在时为0
+     */
+    public static Long llen(final String key) {
+        return backend.lLen(SafeEncoder.encode(key));
+    }
+
+    /**
+     * 从source尾部取出一个元素放到destination头部
+     *
+     * @return 取出的元素，source为空时返回null
+     */
+    public static String rpoplpush(final String source, final String destination) {
+        byte[] value = backend.rPopLPush(SafeEncoder.encode(source), SafeEncoder.encode(destination));
+        return value == null ? null : SafeEncoder.encode(value);
+    }
+
+    /**
+     * 与rpoplpush一致，source为空时最多等待timeout秒
+     */
+    public static String brpoplpush(final String source, final String destination, final int timeout) {
+        byte[] value = backend.bRPopLPush(timeout, SafeEncoder.encode(source), SafeEncoder.encode(destination));
+        return value == null ? null : SafeEncoder.encode(value);
     }
 
     /**
@@ -132,12 +172,8 @@ public class RedisUtils {
      * @param end
      * @return
      */
-    @SuppressWarnings("unchecked")
     public static List<String> lrange(final String key, final int start, final int end) {
-        return (List<String>) template.execute((RedisConnection connection) -> {
-            List<byte[]> list = connection.lRange(SafeEncoder.encode(key), start, end);
-            return BuilderFactory.STRING_LIST.build(list);
-        });
+        return BuilderFactory.STRING_LIST.build(backend.lRange(SafeEncoder.encode(key), start, end));
     }
 
     /**
@@ -149,7 +185,7 @@ public class RedisUtils {
      * @return
      */
     public static Long lrem(final String key, final String value, final int count) {
-        return (Long) template.execute((RedisConnection connection) -> connection.lRem(SafeEncoder.encode(key), count, SafeEncoder.encode(value)));
+        return backend.lRem(SafeEncoder.encode(key), count, SafeEncoder.encode(value));
     }
 
     /**
@@ -160,18 +196,20 @@ public class RedisUtils {
      */
     public static Boolean exists(final String key) {
         logger.debug("query exist key={}", key);
-        return (Boolean) template.execute((RedisConnection connection) -> connection.exists(SafeEncoder.encode(key)));
+        return backend.exists(SafeEncoder.encode(key));
     }
 
     /**
      * 原子增加key的值+1，如果key不存在，则创建并赋值为1。如果存在值但不是integer类型的则会报错
+     * <p>
+     * 每次调用访问一次redis，不需要返回值的高频计数使用RedisCounters
      *
      * @param key 键
      * @return 返回原子+1后的数值
      */
     public static Long incr(final String key) {
         logger.debug("incrBy key={}", key);
-        return (Long) template.execute((RedisConnection connection) -> connection.incr(SafeEncoder.encode(key)));
+        return backend.incrBy(SafeEncoder.encode(key), 1);
     }
 
     /**
@@ -183,7 +221,7 @@ public class RedisUtils {
      */
     public static Long incrBy(final String key, final long num) {
         logger.debug("incrBy key={},num={}", key, num);
-        return (Long) template.execute((RedisConnection connection) -> connection.incrBy(SafeEncoder.encode(key), num));
+        return backend.incrBy(SafeEncoder.encode(key), num);
     }
 
     /**
@@ -195,7 +233,7 @@ public class RedisUtils {
      */
     public static Double incrByFloat(final String key, final double num) {
         logger.debug("incrByFloat key={},num={}", key, num);
-        return (Double) template.execute((RedisConnection connection) -> connection.incrBy(SafeEncoder.encode(key), num));
+        return backend.incrByFloat(SafeEncoder.encode(key), num);
     }
 
     /**
@@ -229,16 +267,14 @@ public class RedisUtils {
      * @return
      */
     public static Long setnx(final String key, final Object value, final Integer seconds, final Boolean refreshExpireTime) {
-        return (Long) template.execute((RedisConnection connection) -> {
-            String json = JSON.toJSONString(value);
-            byte[] keyBytes = SafeEncoder.encode(key);
-            Boolean ret = connection.setNX(keyBytes, SafeEncoder.encode(json));
-            if (refreshExpireTime || ret) {
-                connection.expire(keyBytes, seconds);
-            }
-            logger.debug("setnx key={},value={}", key, json);
-            return ret ? 1L : 0L;
-        });
+        String json = JSON.toJSONString(value);
+        byte[] keyBytes = SafeEncoder.encode(key);
+        boolean ret = Boolean.TRUE.equals(backend.setNx(keyBytes, SafeEncoder.encode(json), seconds));
+        if (refreshExpireTime && !ret) {
+            backend.expire(keyBytes, seconds);
+        }
+        logger.debug("setnx key={},value={}", key, json);
+        return ret ? 1L : 0L;
     }
 
     /**
@@ -249,7 +285,7 @@ public class RedisUtils {
      */
     public static Long decr(final String key) {
         logger.debug("decr key={}", key);
-        return (Long) template.execute((RedisConnection connection) -> connection.decr(SafeEncoder.encode(key)));
+        return backend.incrBy(SafeEncoder.encode(key), -1);
     }
 
     /**
@@ -261,7 +297,7 @@ public class RedisUtils {
      */
     public static Long decrBy(final String key, final long num) {
         logger.debug("decrBy key={},num={}", key, num);
-        return (Long) template.execute((RedisConnection connection) -> connection.decrBy(SafeEncoder.encode(key), num));
+        return backend.incrBy(SafeEncoder.encode(key), -num);
     }
 
     /** shiro add method start*/
@@ -273,21 +309,28 @@ public class RedisUtils {
      * @return 返回 value
      */
     public static byte[] get(final byte[] key) {
-        return (byte[]) template.execute((RedisConnection connection) -> connection.get(key));
+        return compressor.decompress(backend.get(key));
+    }
+
+    /**
+     * 与get一致，总是读主库
+     *
+     * @param key 键
+     * @return 返回 value
+     */
+    public static byte[] getFromMaster(final byte[] key) {
+        return compressor.decompress(backend.getFromMaster(key));
     }
 
     /**
      * put object to redis,key exist by set time
+     * seconds不大于0时删除key
      *
      * @param key
      * @param value
      */
     public static byte[] set(final byte[] key, final byte[] value, final Integer seconds) {
-        template.execute((RedisConnection connection) -> {
-            connection.set(key, value);
-            connection.expire(key, seconds);
-            return value;
-        });
+        setEx(key, compressor.compress(key, value), seconds);
         return value;
     }
 
@@ -298,7 +341,7 @@ public class RedisUtils {
      * @return
      */
     public static Long del(final byte[] key) {
-        return (Long) template.execute((RedisConnection connection) -> connection.del(key));
+        return backend.del(key);
     }
 
     /**
@@ -307,9 +350,8 @@ public class RedisUtils {
      * @param pattern
      * @return 返回 value
      */
-    @SuppressWarnings("unchecked")
     public static Set<byte[]> keys(final String pattern) {
-        return (Set<byte[]>) template.execute((RedisConnection connection) -> connection.keys(SafeEncoder.encode(pattern)));
+        return backend.keys(SafeEncoder.encode(pattern));
     }
 
     /**
@@ -317,10 +359,7 @@ public class RedisUtils {
      */
     public static void flushDB() {
         logger.debug("flushDB");
-        template.execute((RedisConnection connection) -> {
-            connection.flushDb();
-            return null;
-        });
+        backend.flushDb();
     }
 
     /**
@@ -329,13 +368,80 @@ public class RedisUtils {
      * @return
      */
     public static Long dbSize() {
-        return (Long) template.execute(RedisConnection::dbSize);
+        return backend.dbSize();
     }
 
     /** shiro add method end*/
 
-    @SuppressWarnings("unchecked")
-    public static <T> T execute(RedisCallback<T> action){
-        return (T) template.execute(action);
+    /**
+     * 在主库的同一连接上执行多个操作，之后当前请求的读操作都走主库
+     */
+    public static <T> T execute(Function<RedisBackend, T> action) {
+        return backend.execute(action);
+    }
+
+    /**
+     * 在主库上以pipeline方式执行
+     */
+    public static List<Object> executePipelined(Consumer<RedisBackend> action) {
+        return backend.executePipelined(action);
+    }
+
+    /**
+     * 当前请求(线程)之后的读操作都走主库，用于需要读到自己写入结果的场景
+     */
+    public static void pinMaster() {
+        RedisReplicaRouter.pinCurrentThread();
+    }
+
+    /**
+     * 恢复读写分离
+     */
+    public static void unpinMaster() {
+        RedisReplicaRouter.unpin();
+    }
+
+    /**
+     * seconds不大于0时删除key，与原来SET之后EXPIRE的结果一致
+     */
+    private static void setEx(byte[] key, byte[] value, int seconds) {
+        if (seconds > 0) {
+            backend.setEx(key, seconds, value);
+        } else {
+            backend.del(key);
+        }
+    }
+
+    /**
+     * 按key的压缩策略压缩value，用于直接通过execute写入的数据
+     */
+    public static byte[] compress(final byte[] key, final byte[] value) {
+        return compressor.compress(key, value);
+    }
+
+    /**
+     * 解压value，未压缩的数据原样返回
+     */
+    public static byte[] decompress(final byte[] value) {
+        return compressor.decompress(value);
+    }
+
+    private static ValueCompressor findCompressor() {
+        Map<String, ValueCompressor> compressors = ApplicationContextHelper.getApplicationContext().getBeansOfType(ValueCompressor.class);
+        return compressors.isEmpty() ? new ValueCompressor() : compressors.values().iterator().next();
+    }
+
+    private static RedisBackend findBackend() {
+        Map<String, RedisBackend> backends = ApplicationContextHelper.getApplicationContext().getBeansOfType(RedisBackend.class);
+        if (!backends.isEmpty()) {
+            return backends.values().iterator().next();
+        }
+        RemoteRedisBackend backend = new RemoteRedisBackend();
+        backend.setTemplate(ApplicationContextHelper.getApplicationContext().getBean(StringRedisTemplate.class));
+        Map<String, RedisReplicaRouter> routers = ApplicationContextHelper.getApplicationContext().getBeansOfType(RedisReplicaRouter.class);
+        if (!routers.isEmpty()) {
+            backend.setRouter(routers.values().iterator().next());
+        }
+        return backend;
     }
 }
\ No newline at end of file
@@ -0,0 +1,245 @@
+package io.renren.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.util.SafeEncoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 基于list的可靠队列
+ * <p>
+ * offer把元素LPUSH到队列；poll用BRPOPLPUSH/RPOPLPUSH把元素从队列尾部移到当前消费者的处理中列表，处理完成后ack删除。
+ * 消费者在poll、ack时刷新心跳，处理单批元素较慢时需要自己调用heartbeat；心跳超过visibilityTimeout秒未刷新的消费者
+ * (进程退出或处理卡住)，其处理中的元素由recover放回队列重新投递，同一元素可能被处理多次，处理逻辑需要幂等。
+ * <p>
+ * 使用的key：queue:{name}待处理，queue:{name}:processing:{consumerId}处理中，
+ * queue:{name}:heartbeat:{consumerId}心跳，queue:{name}:consumers消费者集合
+ */
+public class ReliableQueue {
+
+    private static Logger logger = LoggerFactory.getLogger(ReliableQueue.class);
+
+    /**
+     * offer时每个LPUSH命令最多携带的元素数
+     */
+    private static final int PUSH_BATCH = 1000;
+
+    /**
+     * recover时每次往返移动的元素数
+     */
+    private static final int RECOVER_BATCH = 100;
+
+    private final String name;
+
+    private final String consumerId;
+
+    private final byte[] queueKey;
+
+    private final byte[] processingKey;
+
+    private final byte[] heartbeatKey;
+
+    private final byte[] consumersKey;
+
+    //心跳超时/秒，超时后处理中的元素重新投递
+    private int visibilityTimeout = 60;
+
+    private volatile long nextRecover;
+
+    public ReliableQueue(String name) {
+        this(name, ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID().toString().substring(0, 8));
+    }
+
+    public ReliableQueue(String name, String consumerId) {
+        this.name = name;
+        this.consumerId = consumerId;
+        this.queueKey = SafeEncoder.encode("queue:" + name);
+        this.processingKey = processingKey(consumerId);
+        this.heartbeatKey = heartbeatKey(consumerId);
+        this.consumersKey = SafeEncoder.encode("queue:" + name + ":consumers");
+    }
+
+    public long offer(String... items) {
+        return offer(Arrays.asList(items));
+    }
+
+    /**
+     * 批量放入队列，所有LPUSH在一次往返中发送
+     *
+     * @return 放入后的队列长度
+     */
+    public long offer(Collection<String> items) {
+        if (items.isEmpty()) {
+            return size();
+        }
+        byte[][] values = SafeEncoder.encodeMany(items.toArray(new String[items.size()]));
+        List<Object> results = RedisUtils.executePipelined(backend -> {
+            for (int i = 0; i < values.length; i += PUSH_BATCH) {
+                backend.lPush(queueKey, Arrays.copyOfRange(values, i, Math.min(values.length, i + PUSH_BATCH)));
+            }
+        });
+        return (Long) results.get(results.size() - 1);
+    }
+
+    /**
+     * 最多取出max个元素放入处理中列表：第一个用BRPOPLPUSH等待，其余的RPOPLPUSH在一次往返中发送
+     *
+     * @param max     最多取出的元素数
+     * @param timeout 队列为空时最多等待的秒数，不大于0时不等待；应小于redis连接的读超时
+     * @return 取出的元素，按入队顺序；没有元素时为空
+     */
+    public List<String> poll(int max, int timeout) {
+        heartbeat();
+        recoverIfDue();
+        List<String> items = new ArrayList<>(max);
+        byte[] first = RedisUtils.execute(backend -> timeout > 0
+                ? backend.bRPopLPush(timeout, queueKey, processingKey)
+                : backend.rPopLPush(queueKey, processingKey));
+        if (first == null) {
+            return items;
+        }
+        items.add(SafeEncoder.encode(first));
+        if (max > 1) {
+            List<Object> results = RedisUtils.executePipelined(backend -> {
+                for (int i = 1; i < max; i++) {
+                    backend.rPopLPush(queueKey, processingKey);
+                }
+            });
+            for (Object result : results) {
+                if (result instanceof byte[]) {
+                    items.add(SafeEncoder.encode((byte[]) result));
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * 处理完成，从处理中列表删除，所有LREM在一次往返中发送
+     *
+     * @return 删除的元素数，已被重新投递的元素不计入
+     */
+    public long ack(Collection<String> items) {
+        if (items.isEmpty()) {
+            return 0;
+        }
+        List<Object> results = RedisUtils.executePipelined(backend -> {
+            //处理中列表尾部是最早取出的元素，从尾部开始找
+            for (String item : items) {
+                backend.lRem(processingKey, -1, SafeEncoder.encode(item));
+            }
+            backend.setEx(heartbeatKey, visibilityTimeout, SafeEncoder.encode(consumerId));
+        });
+        long acked = 0;
+        for (Object result : results) {
+            acked += (Long) result;
+        }
+        return acked;
+    }
+
+    /**
+     * 刷新心跳
+     */
+    public void heartbeat() {
+        RedisUtils.executePipelined(backend -> {
+            backend.setEx(heartbeatKey, visibilityTimeout, SafeEncoder.encode(consumerId));
+            backend.sAdd(consumersKey, SafeEncoder.encode(consumerId));
+        });
+    }
+
+    /**
+     * 把心跳超时的消费者处理中的元素放回队列，poll时每visibilityTimeout秒自动执行一次
+     *
+     * @return 放回的元素数
+     */
+    public int recover() {
+        Set<byte[]> consumers = RedisUtils.execute(backend -> backend.sMembers(consumersKey));
+        int requeued = 0;
+        for (byte[] id : consumers) {
+            String consumer = SafeEncoder.encode(id);
+            if (consumer.equals(consumerId) || RedisUtils.execute(backend -> backend.exists(heartbeatKey(consumer)))) {
+                continue;
+            }
+            //先移出集合：消费者恢复后下一次心跳会重新加入
+            RedisUtils.execute(backend -> backend.sRem(consumersKey, id));
+            byte[] processing = processingKey(consumer);
+            int count = 0;
+            int moved;
+            do {
+                List<Object> results = RedisUtils.executePipelined(backend -> {
+                    for (int i = 0; i < RECOVER_BATCH; i++) {
+                        backend.rPopLPush(processing, queueKey);
+                    }
+                });
+                moved = 0;
+                for (Object result : results) {
+                    if (result instanceof byte[]) {
+                        moved++;
+                    }
+                }
+                count += moved;
+            } while (moved == RECOVER_BATCH);
+            requeued += count;
+            logger.warn("queue {} consumer {} heartbeat timeout, {} items requeued", name, consumer, count);
+        }
+        return requeued;
+    }
+
+    private void recoverIfDue() {
+        long now = System.currentTimeMillis();
+        if (now < nextRecover) {
+            return;
+        }
+        nextRecover = now + visibilityTimeout * 1000L;
+        try {
+            recover();
+        } catch (Exception e) {
+            logger.error("queue {} recover failed", name, e);
+        }
+    }
+
+    /**
+     * 待处理的元素数
+     */
+    public long size() {
+        return RedisUtils.execute(backend -> backend.lLen(queueKey));
+    }
+
+    /**
+     * 当前消费者处理中的元素数
+     */
+    public long processingSize() {
+        return RedisUtils.execute(backend -> backend.lLen(processingKey));
+    }
+
+    private byte[] processingKey(String consumer) {
+        return SafeEncoder.encode("queue:" + name + ":processing:" + consumer);
+    }
+
+    private byte[] heartbeatKey(String consumer) {
+        return SafeEncoder.encode("queue:" + name + ":heartbeat:" + consumer);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getConsumerId() {
+        return consumerId;
+    }
+
+    public int getVisibilityTimeout() {
+        return visibilityTimeout;
+    }
+
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+}
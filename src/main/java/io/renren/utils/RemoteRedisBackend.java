@@ -0,0 +1,443 @@
+package io.renren.utils;
+
+import io.renren.trace.RequestTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 通过RedisTemplate访问redis服务
+ * <p>
+ * 配置了router时读操作走从库，从库连接失败时改走主库；写操作走主库，之后当前请求的读操作也走主库
+ */
+public class RemoteRedisBackend implements RedisBackend {
+
+    private static Logger logger = LoggerFactory.getLogger(RemoteRedisBackend.class);
+
+    /**
+     * delIfEquals使用的脚本
+     */
+    public static final String DEL_IF_EQUALS_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+    private static final byte[] DEL_IF_EQUALS = DEL_IF_EQUALS_SCRIPT.getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] NX = "NX".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] EX = "EX".getBytes(StandardCharsets.UTF_8);
+
+    private RedisTemplate template;
+
+    /**
+     * 读写分离，未配置时所有操作都走template
+     */
+    private RedisReplicaRouter router;
+
+    @Override
+    public byte[] get(byte[] key) {
+        return read(backend -> backend.get(key));
+    }
+
+    @Override
+    public byte[] getFromMaster(byte[] key) {
+        return master(backend -> backend.get(key));
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+        write(backend -> {
+            backend.set(key, value);
+            return null;
+        });
+    }
+
+    @Override
+    public void setEx(byte[] key, int seconds, byte[] value) {
+        write(backend -> {
+            backend.setEx(key, seconds, value);
+            return null;
+        });
+    }
+
+    @Override
+    public Boolean setNx(byte[] key, byte[] value, int seconds) {
+        return write(backend -> backend.setNx(key, value, seconds));
+    }
+
+    @Override
+    public Long del(byte[]... keys) {
+        return write(backend -> backend.del(keys));
+    }
+
+    @Override
+    public Boolean delIfEquals(byte[] key, byte[] value) {
+        return write(backend -> backend.delIfEquals(key, value));
+    }
+
+    @Override
+    public Boolean exists(byte[] key) {
+        return read(backend -> backend.exists(key));
+    }
+
+    @Override
+    public Boolean expire(byte[] key, int seconds) {
+        return write(backend -> backend.expire(key, seconds));
+    }
+
+    @Override
+    public Long ttl(byte[] key) {
+        return read(backend -> backend.ttl(key));
+    }
+
+    @Override
+    public Set<byte[]> keys(byte[] pattern) {
+        return read(backend -> backend.keys(pattern));
+    }
+
+    @Override
+    public Long dbSize() {
+        return read(RedisBackend::dbSize);
+    }
+
+    @Override
+    public void flushDb() {
+        write(backend -> {
+            backend.flushDb();
+            return null;
+        });
+    }
+
+    @Override
+    public Long incrBy(byte[] key, long delta) {
+        return write(backend -> backend.incrBy(key, delta));
+    }
+
+    @Override
+    public Double incrByFloat(byte[] key, double delta) {
+        return write(backend -> backend.incrByFloat(key, delta));
+    }
+
+    @Override
+    public Boolean hSet(byte[] key, byte[] field, byte[] value) {
+        return write(backend -> backend.hSet(key, field, value));
+    }
+
+    @Override
+    public Long hDel(byte[] key, byte[]... fields) {
+        return write(backend -> backend.hDel(key, fields));
+    }
+
+    @Override
+    public Long lPush(byte[] key, byte[]... values) {
+        return write(backend -> backend.lPush(key, values));
+    }
+
+    @Override
+    public Long rPush(byte[] key, byte[]... values) {
+        return write(backend -> backend.rPush(key, values));
+    }
+
+    @Override
+    public Long lLen(byte[] key) {
+        return read(backend -> backend.lLen(key));
+    }
+
+    @Override
+    public byte[] rPopLPush(byte[] source, byte[] destination) {
+        return write(backend -> backend.rPopLPush(source, destination));
+    }
+
+    /**
+     * 等待期间占用一个连接，timeout应小于连接的读超时
+     */
+    @Override
+    public byte[] bRPopLPush(int timeout, byte[] source, byte[] destination) {
+        return write(backend -> backend.bRPopLPush(timeout, source, destination));
+    }
+
+    @Override
+    public List<byte[]> lRange(byte[] key, long start, long end) {
+        return read(backend -> backend.lRange(key, start, end));
+    }
+
+    @Override
+    public Long lRem(byte[] key, long count, byte[] value) {
+        return write(backend -> backend.lRem(key, count, value));
+    }
+
+    @Override
+    public Long sAdd(byte[] key, byte[]... members) {
+        return write(backend -> backend.sAdd(key, members));
+    }
+
+    @Override
+    public Long sRem(byte[] key, byte[]... members) {
+        return write(backend -> backend.sRem(key, members));
+    }
+
+    @Override
+    public Set<byte[]> sMembers(byte[] key) {
+        return read(backend -> backend.sMembers(key));
+    }
+
+    @Override
+    public <T> T execute(Function<RedisBackend, T> action) {
+        return write(action);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Object> executePipelined(Consumer<RedisBackend> action) {
+        RedisReplicaRouter.pin();
+        RequestTrace.start(RequestTrace.Span.REDIS);
+        try {
+            //结果不经过template的valueSerializer，与非pipeline操作一样返回byte[]
+            return template.executePipelined((RedisCallback<Object>) connection -> {
+                action.accept(new ConnectionBackend(connection));
+                return null;
+            }, null);
+        } finally {
+            RequestTrace.stop(RequestTrace.Span.REDIS);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T read(Function<RedisBackend, T> action) {
+        RequestTrace.start(RequestTrace.Span.REDIS);
+        try {
+            if (router != null) {
+                RedisTemplate replica = router.forRead();
+                if (replica != template) {
+                    try {
+                        return (T) replica.execute(callback(action));
+                    } catch (RedisConnectionFailureException e) {
+                        logger.warn("read from replica failed, fallback to master", e);
+                    }
+                }
+            }
+            return (T) template.execute(callback(action));
+        } finally {
+            RequestTrace.stop(RequestTrace.Span.REDIS);
+        }
+    }
+
+    private <T> T write(Function<RedisBackend, T> action) {
+        RedisReplicaRouter.pin();
+        return master(action);
+    }
+
+    /**
+     * 在主库上执行，不改变当前线程的读写分离
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T master(Function<RedisBackend, T> action) {
+        RequestTrace.start(RequestTrace.Span.REDIS);
+        try {
+            return (T) template.execute(callback(action));
+        } finally {
+            RequestTrace.stop(RequestTrace.Span.REDIS);
+        }
+    }
+
+    private static <T> RedisCallback<T> callback(Function<RedisBackend, T> action) {
+        return connection -> action.apply(new ConnectionBackend(connection));
+    }
+
+    public RedisTemplate getTemplate() {
+        return template;
+    }
+
+    public void setTemplate(RedisTemplate template) {
+        this.template = template;
+    }
+
+    public RedisReplicaRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * 同时使用router的主库作为template
+     */
+    public void setRouter(RedisReplicaRouter router) {
+        this.router = router;
+        this.template = router.getMaster();
+    }
+
+    /**
+     * 在一个连接上执行的操作
+     */
+    private static class ConnectionBackend implements RedisBackend {
+
+        private final RedisConnection connection;
+
+        ConnectionBackend(RedisConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public byte[] get(byte[] key) {
+            return connection.get(key);
+        }
+
+        @Override
+        public byte[] getFromMaster(byte[] key) {
+            return connection.get(key);
+        }
+
+        @Override
+        public void set(byte[] key, byte[] value) {
+            connection.set(key, value);
+        }
+
+        @Override
+        public void setEx(byte[] key, int seconds, byte[] value) {
+            connection.setEx(key, seconds, value);
+        }
+
+        @Override
+        public Boolean setNx(byte[] key, byte[] value, int seconds) {
+            //管道中SET的OK状态回复不会出现在结果中，无法区分是否设置成功
+            if (connection.isPipelined()) {
+                throw new UnsupportedOperationException("setNx is not supported in pipeline");
+            }
+            //SET NX EX一条命令完成，不会留下没有生存时间的key；未设置时返回nil
+            byte[] ttl = String.valueOf(seconds).getBytes(StandardCharsets.UTF_8);
+            return connection.execute("SET", key, value, NX, EX, ttl) != null;
+        }
+
+        @Override
+        public Long del(byte[]... keys) {
+            return connection.del(keys);
+        }
+
+        @Override
+        public Boolean delIfEquals(byte[] key, byte[] value) {
+            Long deleted = connection.eval(DEL_IF_EQUALS, ReturnType.INTEGER, 1, key, value);
+            //管道中返回null
+            return deleted == null ? null : deleted > 0;
+        }
+
+        @Override
+        public Boolean exists(byte[] key) {
+            return connection.exists(key);
+        }
+
+        @Override
+        public Boolean expire(byte[] key, int seconds) {
+            return connection.expire(key, seconds);
+        }
+
+        @Override
+        public Long ttl(byte[] key) {
+            return connection.ttl(key);
+        }
+
+        @Override
+        public Set<byte[]> keys(byte[] pattern) {
+            return connection.keys(pattern);
+        }
+
+        @Override
+        public Long dbSize() {
+            return connection.dbSize();
+        }
+
+        @Override
+        public void flushDb() {
+            connection.flushDb();
+        }
+
+        @Override
+        public Long incrBy(byte[] key, long delta) {
+            return connection.incrBy(key, delta);
+        }
+
+        @Override
+        public Double incrByFloat(byte[] key, double delta) {
+            //double参数的incrBy发送INCRBYFLOAT
+            return connection.incrBy(key, delta);
+        }
+
+        @Override
+        public Boolean hSet(byte[] key, byte[] field, byte[] value) {
+            return connection.hSet(key, field, value);
+        }
+
+        @Override
+        public Long hDel(byte[] key, byte[]... fields) {
+            return connection.hDel(key, fields);
+        }
+
+        @Override
+        public Long lPush(byte[] key, byte[]... values) {
+            return connection.lPush(key, values);
+        }
+
+        @Override
+        public Long rPush(byte[] key, byte[]... values) {
+            return connection.rPush(key, values);
+        }
+
+        @Override
+        public Long lLen(byte[] key) {
+            return connection.lLen(key);
+        }
+
+        @Override
+        public byte[] rPopLPush(byte[] source, byte[] destination) {
+            return connection.rPopLPush(source, destination);
+        }
+
+        @Override
+        public byte[] bRPopLPush(int timeout, byte[] source, byte[] destination) {
+            return connection.bRPopLPush(timeout, source, destination);
+        }
+
+        @Override
+        public List<byte[]> lRange(byte[] key, long start, long end) {
+            return connection.lRange(key, start, end);
+        }
+
+        @Override
+        public Long lRem(byte[] key, long count, byte[] value) {
+            return connection.lRem(key, count, value);
+        }
+
+        @Override
+        public Long sAdd(byte[] key, byte[]... members) {
+            return connection.sAdd(key, members);
+        }
+
+        @Override
+        public Long sRem(byte[] key, byte[]... members) {
+            return connection.sRem(key, members);
+        }
+
+        @Override
+        public Set<byte[]> sMembers(byte[] key) {
+            return connection.sMembers(key);
+        }
+
+        @Override
+        public <T> T execute(Function<RedisBackend, T> action) {
+            return action.apply(this);
+        }
+
+        @Override
+        public List<Object> executePipelined(Consumer<RedisBackend> action) {
+            connection.openPipeline();
+            action.accept(this);
+            return connection.closePipeline();
+        }
+    }
+}
@@ -12,6 +12,21 @@ import java.io.*;
 public class SerializeUtils {
     private static Logger logger = LoggerFactory.getLogger(SerializeUtils.class);
 
+    /**
+     * 线程内复用的输出缓冲区，session序列化时不用每次从128字节开始扩容
+     */
+    private static final ThreadLocal<BufferOutputStream> BUFFER = new ThreadLocal<BufferOutputStream>() {
+        @Override
+        protected BufferOutputStream initialValue() {
+            return new BufferOutputStream(1024);
+        }
+    };
+
+    /**
+     * 线程内缓冲区最大保留大小，序列化超大对象后不长期占用内存
+     */
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
     /**
      * 反序列化
      *
@@ -77,8 +92,9 @@ public class SerializeUtils {
         if (object == null) {
             return new byte[0];
         }
+        BufferOutputStream byteStream = BUFFER.get();
+        byteStream.reset();
         try {
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream(128);
             try {
                 if (!(object instanceof Serializable)) {
                     throw new IllegalArgumentException(SerializeUtils.class.getSimpleName() + " requires a Serializable payload " +
@@ -96,7 +112,22 @@ public class SerializeUtils {
             }
         } catch (Exception ex) {
             logger.error("Failed to serialize", ex);
+        } finally {
+            if (byteStream.capacity() > MAX_BUFFER_SIZE) {
+                BUFFER.remove();
+            }
         }
         return result;
     }
+
+    private static class BufferOutputStream extends ByteArrayOutputStream {
+
+        BufferOutputStream(int size) {
+            super(size);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
 }
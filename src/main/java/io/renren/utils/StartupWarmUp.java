@@ -0,0 +1,247 @@
+package io.renren.utils;
+
+import com.alibaba.fastjson.JSON;
+import com.google.code.kaptcha.Producer;
+import com.google.code.kaptcha.util.Config;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+import javax.imageio.ImageIO;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 启动预热
+ * <p>
+ * 容器启动后在后台线程中依次执行各预热阶段(redis连接池、序列化/JSON、验证码、页面模板、数据库连接)，
+ * 记录每个阶段的耗时；全部完成后isReady()才返回true，负载均衡通过/health/ready判断是否可以接入流量。
+ * 验证码和页面模板失败时只影响首次请求的耗时，记录后继续；redis和序列化失败时按退避间隔重试，成功前不返回ready。
+ * 数据库只用于登录日志，在ready之后预热连接池，失败时只记录，不影响ready
+ */
+public class StartupWarmUp implements ApplicationListener<ContextRefreshedEvent> {
+
+    private static Logger logger = LoggerFactory.getLogger(StartupWarmUp.class);
+
+    /**
+     * 未配置时从容器中查找，使用进程内存储时没有
+     */
+    private RedisConnectionFactory connectionFactory;
+
+    private VelocityPageCache velocityPageCache;
+
+    /**
+     * 可选，embedded-redis时没有
+     */
+    private DataSource dataSource;
+
+    /**
+     * 预先建立的redis连接数，不应超过连接池的maxIdle
+     */
+    private int redisConnections = 10;
+
+    /**
+     * 必需阶段失败后的首次重试间隔/毫秒，之后每次加倍
+     */
+    private long retryDelay = 1000;
+
+    /**
+     * 最大重试间隔/毫秒
+     */
+    private long maxRetryDelay = 30000;
+
+    private volatile boolean started;
+
+    private volatile boolean ready;
+
+    /**
+     * 各阶段耗时/毫秒，失败的阶段为-1
+     */
+    private final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        //只在根容器启动时执行一次
+        if (event.getApplicationContext().getParent() != null || started) {
+            return;
+        }
+        started = true;
+        if (connectionFactory == null) {
+            Map<String, RedisConnectionFactory> factories = event.getApplicationContext().getBeansOfType(RedisConnectionFactory.class);
+            if (!factories.isEmpty()) {
+                connectionFactory = factories.values().iterator().next();
+            }
+        }
+        Thread thread = new Thread(this::warmUp, "startup-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            required("redis", this::warmUpRedis);
+            required("codec", this::warmUpCodec);
+            phase("kaptcha", this::warmUpKaptcha);
+            if (velocityPageCache != null) {
+                phase("page", velocityPageCache::warmUp);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("warm up interrupted, not ready {}", timings);
+            return;
+        }
+        timings.put("total", System.currentTimeMillis() - start);
+        ready = true;
+        logger.info("warm up finished {}", timings);
+        if (dataSource != null && !phase("db", this::warmUpDataSource)) {
+            logger.warn("warm up phase db failed, login logs are written when the database is available");
+        }
+    }
+
+    /**
+     * 失败时重试直到成功，重试期间timings中该阶段为-1
+     */
+    private void required(String name, Runnable action) throws InterruptedException {
+        long delay = retryDelay;
+        while (!phase(name, action)) {
+            logger.warn("warm up phase {} is required, retry in {}ms", name, delay);
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, maxRetryDelay);
+        }
+    }
+
+    /**
+     * @return 是否成功
+     */
+    private boolean phase(String name, Runnable action) {
+        long start = System.currentTimeMillis();
+        try {
+            action.run();
+            timings.put(name, System.currentTimeMillis() - start);
+            return true;
+        } catch (Exception e) {
+            timings.put(name, -1L);
+            logger.error("warm up phase {} failed", name, e);
+            return false;
+        }
+    }
+
+    /**
+     * 初始化RedisUtils并填充连接池
+     */
+    private void warmUpRedis() {
+        RedisUtils.dbSize();
+        if (connectionFactory == null) {
+            return;
+        }
+        List<RedisConnection> connections = new ArrayList<>(redisConnections);
+        try {
+            for (int i = 0; i < redisConnections; i++) {
+                RedisConnection connection = connectionFactory.getConnection();
+                connections.add(connection);
+                connection.ping();
+            }
+        } finally {
+            for (RedisConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * session序列化、value压缩、R的JSON编解码
+     */
+    private void warmUpCodec() {
+        SimpleSession session = new SimpleSession("127.0.0.1");
+        session.setId("warm-up");
+        session.setAttribute("warm-up", Boolean.TRUE);
+        byte[] bytes = SerializeUtils.serialize(session);
+        SerializeUtils.deserialize(RedisUtils.decompress(RedisUtils.compress(new byte[0], bytes)));
+
+        R r = R.ok().put("page", new PageUtils(new ArrayList<>(), 0, 10, 1));
+        JSON.parseObject(JSON.toJSONString(r), R.class);
+    }
+
+    /**
+     * 字体、图片编码器初始化，与KaptchaExtend的配置一致
+     */
+    private void warmUpKaptcha() {
+        Properties props = new Properties();
+        props.put("kaptcha.border", "no");
+        props.put("kaptcha.textproducer.font.color", "black");
+        props.put("kaptcha.textproducer.char.space", "5");
+        Producer producer = new Config(props).getProducerImpl();
+        try {
+            ImageIO.write(producer.createImage(producer.createText()), "jpg", new NullOutputStream());
+        } catch (Exception e) {
+            throw new RRException("warm up kaptcha failed", e);
+        }
+    }
+
+    private void warmUpDataSource() {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.isValid(1);
+        } catch (Exception e) {
+            throw new RRException("warm up dataSource failed", e);
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public Map<String, Long> getTimings() {
+        synchronized (timings) {
+            return new LinkedHashMap<>(timings);
+        }
+    }
+
+    public void setConnectionFactory(RedisConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    public void setVelocityPageCache(VelocityPageCache velocityPageCache) {
+        this.velocityPageCache = velocityPageCache;
+    }
+
+    @Autowired(required = false)
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public int getRedisConnections() {
+        return redisConnections;
+    }
+
+    public void setRedisConnections(int redisConnections) {
+        this.redisConnections = redisConnections;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public long getMaxRetryDelay() {
+        return maxRetryDelay;
+    }
+
+    public void setMaxRetryDelay(long maxRetryDelay) {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+}
@@ -0,0 +1,269 @@
+package io.renren.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * redis value压缩
+ * <p>
+ * 超过阈值的value压缩后保存，压缩后的数据以1个字节的HEADER开头；
+ * 未压缩的数据原样保存，所以压缩前写入的旧数据可以正常读取，关闭压缩后已压缩的数据也可以正常读取
+ */
+public class ValueCompressor {
+
+    private static Logger logger = LoggerFactory.getLogger(ValueCompressor.class);
+
+    /**
+     * 压缩数据头，0xFE不会出现在UTF-8文本(JSON)和java序列化数据(0xAC开头)的第一个字节
+     */
+    public static final byte HEADER = (byte) 0xFE;
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<>();
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    /**
+     * 线程内缓冲区最大保留大小
+     */
+    private static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * 是否压缩，关闭后仍可读取已压缩的数据
+     */
+    private boolean enabled = false;
+
+    /**
+     * 默认压缩阈值/字节，小于阈值的value不压缩
+     */
+    private int threshold = 1024;
+
+    /**
+     * 压缩级别，见Deflater
+     */
+    private int level = Deflater.BEST_SPEED;
+
+    /**
+     * 按key前缀配置阈值，小于0时该前缀不压缩，多个前缀匹配时取最长的
+     */
+    private Map<String, Integer> prefixThresholds = new HashMap<>();
+
+    private volatile List<Policy> policies = new ArrayList<>();
+
+    private final LongAdder compressCount = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder skipCount = new LongAdder();
+    private final LongAdder decompressCount = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * 按key的压缩策略压缩value
+     *
+     * @param key   redis key
+     * @param value 原始数据
+     * @return 压缩后的数据，不需要压缩时返回原始数据
+     */
+    public byte[] compress(byte[] key, byte[] value) {
+        if (!enabled || value == null || value.length < threshold(key)) {
+            return value;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = DEFLATER.get();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+            DEFLATER.set(deflater);
+        }
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+
+        //压缩后不小于原始数据时不压缩
+        byte[] buffer = buffer(value.length);
+        int length = 1;
+        while (!deflater.finished() && length < value.length) {
+            length += deflater.deflate(buffer, length, value.length - length);
+        }
+        if (!deflater.finished() || length >= value.length) {
+            skipCount.increment();
+            return value;
+        }
+        buffer[0] = HEADER;
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+
+        compressCount.increment();
+        compressNanos.add(System.nanoTime() - start);
+        rawBytes.add(value.length);
+        compressedBytes.add(length);
+        return result;
+    }
+
+    /**
+     * 解压，未压缩的数据原样返回
+     */
+    public byte[] decompress(byte[] value) {
+        if (value == null || value.length == 0 || value[0] != HEADER) {
+            return value;
+        }
+        long start = System.nanoTime();
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(value, 1, value.length - 1);
+
+        byte[] buffer = buffer(value.length * 4);
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == buffer.length) {
+                    byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                    if (buffer.length <= MAX_BUFFER_SIZE) {
+                        BUFFER.set(buffer);
+                    }
+                }
+                int n = inflater.inflate(buffer, length, buffer.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    logger.error("Failed to decompress, truncated data");
+                    return null;
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            logger.error("Failed to decompress", e);
+            return null;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+
+        decompressCount.increment();
+        decompressNanos.add(System.nanoTime() - start);
+        return result;
+    }
+
+    private byte[] buffer(int size) {
+        byte[] buffer = BUFFER.get();
+        if (buffer.length < size) {
+            buffer = new byte[size];
+            if (size <= MAX_BUFFER_SIZE) {
+                BUFFER.set(buffer);
+            }
+        }
+        return buffer;
+    }
+
+    private int threshold(byte[] key) {
+        int result = threshold;
+        int matched = -1;
+        for (Policy policy : policies) {
+            if (policy.prefix.length > matched && startsWith(key, policy.prefix)) {
+                matched = policy.prefix.length;
+                result = policy.threshold;
+            }
+        }
+        return result < 0 ? Integer.MAX_VALUE : result;
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key == null || key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 压缩统计：压缩次数、压缩率、平均耗时等
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        long count = compressCount.sum();
+        long raw = rawBytes.sum();
+        long compressed = compressedBytes.sum();
+        stats.put("enabled", enabled);
+        stats.put("compressCount", count);
+        stats.put("skipCount", skipCount.sum());
+        stats.put("rawBytes", raw);
+        stats.put("compressedBytes", compressed);
+        stats.put("ratio", raw == 0 ? 1.0 : (double) compressed / raw);
+        stats.put("compressAvgMicros", count == 0 ? 0 : compressNanos.sum() / count / 1000);
+        long decompress = decompressCount.sum();
+        stats.put("decompressCount", decompress);
+        stats.put("decompressAvgMicros", decompress == 0 ? 0 : decompressNanos.sum() / decompress / 1000);
+        return stats;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public Map<String, Integer> getPrefixThresholds() {
+        return prefixThresholds;
+    }
+
+    public void setPrefixThresholds(Map<String, Integer> prefixThresholds) {
+        this.prefixThresholds = prefixThresholds;
+        List<Policy> list = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : prefixThresholds.entrySet()) {
+            list.add(new Policy(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+        }
+        this.policies = list;
+    }
+
+    private static class Policy {
+        private final byte[] prefix;
+        private final int threshold;
+
+        Policy(byte[] prefix, int threshold) {
+            this.prefix = prefix;
+            this.threshold = threshold;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package io.renren.utils;
+
+import io.renren.trace.RequestTrace;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ResourceLoaderAware;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternUtils;
+import org.springframework.web.servlet.view.velocity.VelocityConfig;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 页面渲染结果缓存
+ * sys/*.html 只是静态页面骨架(数据通过ajax加载)，渲染一次后按模板名缓存；
+ * 页面会#include("sys/header.html")等公共模板，模板本身或includePattern匹配的任一模板修改时间变化时重新渲染
+ */
+public class VelocityPageCache implements ResourceLoaderAware {
+
+    private static Logger logger = LoggerFactory.getLogger(VelocityPageCache.class);
+
+    private VelocityConfig velocityConfig;
+
+    private ResourcePatternResolver resourcePatternResolver;
+
+    /**
+     * 模板根路径，与velocityConfigurer的resourceLoaderPath一致
+     */
+    private String templatePath = "/WEB-INF/page/";
+
+    /**
+     * 启动时预渲染的模板
+     */
+    private String warmUpPattern = "sys/*.html";
+
+    /**
+     * 检查模板修改时间的间隔/毫秒，小于等于0时每次都检查
+     */
+    private long checkInterval = 2000;
+
+    /**
+     * 可能被#include、#parse引用的模板
+     */
+    private String includePattern = "**/*.html";
+
+    private final ConcurrentMap<String, Page> pages = new ConcurrentHashMap<>();
+
+    /**
+     * includePattern匹配的模板的最大修改时间
+     */
+    private volatile long includesModified;
+
+    private volatile long includesCheckedAt;
+
+    @Override
+    public void setResourceLoader(ResourceLoader resourceLoader) {
+        this.resourcePatternResolver = ResourcePatternUtils.getResourcePatternResolver(resourceLoader);
+    }
+
+    /**
+     * 预编译并渲染warmUpPattern匹配的所有模板，由StartupWarmUp在启动时调用
+     *
+     * @return 渲染的模板数量
+     */
+    public int warmUp() {
+        int count = 0;
+        try {
+            for (Resource resource : resourcePatternResolver.getResources(templatePath + warmUpPattern)) {
+                String name = warmUpPattern.substring(0, warmUpPattern.lastIndexOf('/') + 1) + resource.getFilename();
+                if (get(name) != null) {
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("warm up templates failed, pattern={}", warmUpPattern, e);
+        }
+        logger.info("warm up {} page templates", count);
+        return count;
+    }
+
+    /**
+     * 获取渲染后的页面
+     *
+     * @param name 模板名，如 sys/user.html
+     * @return 模板不存在时返回null
+     */
+    public Page get(String name) {
+        Page page = pages.get(name);
+        long now = System.currentTimeMillis();
+        if (page != null && now - page.checkedAt < checkInterval) {
+            return page;
+        }
+
+        Resource resource = resourcePatternResolver.getResource(templatePath + name);
+        long lastModified;
+        try {
+            if (!resource.exists()) {
+                pages.remove(name);
+                return null;
+            }
+            lastModified = Math.max(resource.lastModified(), includesLastModified(now));
+        } catch (IOException e) {
+            logger.error("read template lastModified failed, name={}", name, e);
+            return page;
+        }
+
+        if (page != null && page.lastModified == lastModified) {
+            page.checkedAt = now;
+            return page;
+        }
+
+        page = render(name, lastModified, now);
+        pages.put(name, page);
+        return page;
+    }
+
+    /**
+     * 每checkInterval扫描一次includePattern，所有页面共用结果
+     */
+    private long includesLastModified(long now) throws IOException {
+        if (now - includesCheckedAt < checkInterval) {
+            return includesModified;
+        }
+        long max = 0;
+        for (Resource include : resourcePatternResolver.getResources(templatePath + includePattern)) {
+            max = Math.max(max, include.lastModified());
+        }
+        includesModified = max;
+        includesCheckedAt = now;
+        return max;
+    }
+
+    private Page render(String name, long lastModified, long now) {
+        VelocityEngine engine = velocityConfig.getVelocityEngine();
+        StringWriter writer = new StringWriter(4096);
+        RequestTrace.start(RequestTrace.Span.VIEW);
+        try {
+            Template template = engine.getTemplate(name, "UTF-8");
+            template.merge(new VelocityContext(), writer);
+        } finally {
+            RequestTrace.stop(RequestTrace.Span.VIEW);
+        }
+        byte[] body = writer.toString().getBytes(StandardCharsets.UTF_8);
+        logger.debug("render page template name={},size={}", name, body.length);
+        return new Page(body, "\"" + DigestUtils.md5Hex(body) + "\"", lastModified, now);
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        pages.clear();
+    }
+
+    public void setVelocityConfig(VelocityConfig velocityConfig) {
+        this.velocityConfig = velocityConfig;
+    }
+
+    public String getTemplatePath() {
+        return templatePath;
+    }
+
+    public void setTemplatePath(String templatePath) {
+        this.templatePath = templatePath;
+    }
+
+    public String getWarmUpPattern() {
+        return warmUpPattern;
+    }
+
+    public void setWarmUpPattern(String warmUpPattern) {
+        this.warmUpPattern = warmUpPattern;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public String getIncludePattern() {
+        return includePattern;
+    }
+
+    public void setIncludePattern(String includePattern) {
+        this.includePattern = includePattern;
+    }
+
+    /**
+     * 渲染后的页面
+     */
+    public static class Page {
+        private final byte[] body;
+        private final String etag;
+        private final long lastModified;
+        private volatile long checkedAt;
+
+        Page(byte[] body, String etag, long lastModified, long checkedAt) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * 强ETag，页面内容的md5
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * If-None-Match是否命中当前页面
+         */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}